@@ -18,14 +18,27 @@
 
 package org.cprados.wificellmanager;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 
 import org.cprados.wificellmanager.StateMachine.StateEvent;
+import org.cprados.wificellmanager.sys.AssociationConfidence;
+import org.cprados.wificellmanager.sys.AssociationShards;
+import org.cprados.wificellmanager.sys.CellIdentity;
+import org.cprados.wificellmanager.sys.FingerprintIndex;
+import org.cprados.wificellmanager.sys.PlaceClusters;
+import org.cprados.wificellmanager.sys.RadioGovernor;
+import org.cprados.wificellmanager.sys.ServiceState;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -55,6 +68,12 @@ public class DataManager {
     /** Wifi preference action key initiator */
     public static final String PREFERENCE_ACTION_WIFI = "preference_action_wifi" + KEY_SEPARATOR;  
     
+    /** Wifi location fingerprint key initiator */
+    public static final String PREFERENCE_FINGERPRINT = "preference_fingerprint" + KEY_SEPARATOR;  
+    
+    /** Wifi-cell association confidences key initiator */
+    public static final String PREFERENCE_CONFIDENCE = "preference_confidence" + KEY_SEPARATOR;  
+    
     /** Cell enabled preference key initiator */
     public static final String PREFERENCE_CELL_ENABLED = "preference_cell_enabled" + KEY_SEPARATOR;  
     
@@ -193,9 +212,78 @@ public class DataManager {
     /** Unknown location activates Wi-Fi default value */
     public static final boolean PREFERENCE_DEFAULT_UNK_LOCATION_ACTIVATES_WIFI = false;
 
+    /** Service state preference key */
+    public static final String PREFERENCE_SERVICE_STATE = "preference_service_state";
+    
     /** Inflight wifi state change preference key */
     public static final String PREFERENCE_INFLIGHT_WIFI_ACTION = "preference_inflight_wifi_action";
     
+    /** Radio toggle budget preference key */
+    public static final String PREFERENCE_TOGGLE_BUDGET = "preference_toggle_budget";
+
+    /** Radio toggle budget preference default value in toggles per hour and radio */
+    public static final int PREFERENCE_DEFAULT_TOGGLE_BUDGET = 12;
+    
+    /** Radio toggle budget policy preference key */
+    public static final String PREFERENCE_TOGGLE_BUDGET_POLICY = "preference_toggle_budget_policy";
+
+    /** Radio toggle budget policy preference default value */
+    public static final RadioGovernor.Policy PREFERENCE_DEFAULT_TOGGLE_BUDGET_POLICY = RadioGovernor.Policy.DEFER;
+    
+    /** Event recorder preference key */
+    public static final String PREFERENCE_EVENT_RECORDER = "preference_event_recorder";
+
+    /** Event recorder preference default value */
+    public static final boolean PREFERENCE_DEFAULT_EVENT_RECORDER = false;
+    
+    /** Event coalescing window preference key */
+    public static final String PREFERENCE_COALESCING_WINDOW = "preference_coalescing_window";
+
+    /** Event coalescing window preference default value in ms */
+    public static final int PREFERENCE_DEFAULT_COALESCING_WINDOW = 500;
+    
+    /** Cell duplicate window preference key */
+    public static final String PREFERENCE_CELL_DUPLICATE_WINDOW = "preference_cell_duplicate_window";
+
+    /** Cell duplicate window preference default value in seconds */
+    public static final int PREFERENCE_DEFAULT_CELL_DUPLICATE_WINDOW = 60;
+    
+    /** Fingerprint match threshold preference key */
+    public static final String PREFERENCE_FINGERPRINT_THRESHOLD = "preference_fingerprint_threshold";
+
+    /** Fingerprint match threshold preference default value in percent */
+    public static final int PREFERENCE_DEFAULT_FINGERPRINT_THRESHOLD = 50;
+    
+    /** Cell transition prediction threshold preference key */
+    public static final String PREFERENCE_PREDICTION_THRESHOLD = "preference_prediction_threshold";
+
+    /** Cell transition prediction threshold preference default value in percent */
+    public static final int PREFERENCE_DEFAULT_PREDICTION_THRESHOLD = 60;
+    
+    /** Association confidence threshold preference key */
+    public static final String PREFERENCE_CONFIDENCE_THRESHOLD = "preference_confidence_threshold";
+
+    /** Association confidence threshold preference default value in percent */
+    public static final int PREFERENCE_DEFAULT_CONFIDENCE_THRESHOLD = 25;
+    
+    /** Cell transition model preference key */
+    public static final String PREFERENCE_TRANSITIONS = "preference_transitions";
+    
+    /** Maximum cell poll interval preference key */
+    public static final String PREFERENCE_MAX_POLL_INTERVAL = "preference_max_poll_interval";
+
+    /** Maximum cell poll interval preference default value in minutes */
+    public static final int PREFERENCE_DEFAULT_MAX_POLL_INTERVAL = 60;
+    
+    /** Stage timing preference key */
+    public static final String PREFERENCE_STAGE_TIMING = "preference_stage_timing";
+
+    /** Stage timing preference default value */
+    public static final boolean PREFERENCE_DEFAULT_STAGE_TIMING = false;
+    
+    /** Cells with preferences saved without network, or null if they were not looked up yet */
+    private static Set<Long> sLegacyCells;
+    
     /** Comparator used to compare cells */
     public static Comparator<int[]> sCellComparator = new Comparator<int[]>() {
 
@@ -213,6 +301,12 @@ public class DataManager {
                 result = l-r;
             }
             
+            if (result == 0) {
+                l = getNetwork(lhs);
+                r = getNetwork(rhs);
+                result = (l < r) ? -1 : (l == r) ? 0 : 1;
+            }
+            
             return result;
         }                                
     };
@@ -382,10 +476,10 @@ public class DataManager {
         }
     }
     
-    /** Returns the current cell id and lac or {0,0} if unknown */
+    /** Returns the current cell id, lac and network or {0,0,0} if unknown */
     public static int[] getCurrentCell(Context context) {
         
-        int[] result = {0,0};
+        int[] result = {0,0,CellIdentity.NETWORK_UNKNOWN};
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
         String cell = p.getString(PREFERENCE_CURRENT_CELL, null);
         if (cell != null) {
@@ -393,6 +487,9 @@ public class DataManager {
             try {
                 result[0] = Integer.parseInt(parts[0]);
                 result[1] = Integer.parseInt(parts[1]);
+                if (parts.length > 2) {
+                    result[2] = Integer.parseInt(parts[2]);
+                }
             }
             catch (NumberFormatException e) {Log.e(LOGTAG, Log.getStackTraceString(e));}
             catch (ArrayIndexOutOfBoundsException e) {Log.e(LOGTAG, Log.getStackTraceString(e));}
@@ -401,11 +498,11 @@ public class DataManager {
         return result;
     }
 
-    /** Sets the current cell id and lac */
-    public static void setCurrentCell(Context context, int cid, int lac) {
+    /** Sets the current cell id, lac and network */
+    public static void setCurrentCell(Context context, int cid, int lac, int network) {
 
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        String value = cid + KEY_SEPARATOR + lac;
+        String value = getCellTag(cid, lac, network);
         if (cid != 0 && lac != 0) {
             p.edit().putString(PREFERENCE_CURRENT_CELL, value).commit();
         }
@@ -503,13 +600,13 @@ public class DataManager {
     }            
 
     /** Returns if cell is enabled. Affects all wifi-cell associations */
-    public static boolean getCellEnabled(Context context, int cellId, int lac) {
+    public static boolean getCellEnabled(Context context, int cellId, int lac, int network) {
 
         boolean result = true;
 
         if (cellId!= 0 && lac != 0) {
             SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-            String key = PREFERENCE_CELL_ENABLED +  cellId + KEY_SEPARATOR + lac;
+            String key = PREFERENCE_CELL_ENABLED + getCellTag(cellId, lac, network);
             result = p.getBoolean(key, true);
         }
         else {
@@ -520,10 +617,10 @@ public class DataManager {
     }
     
     /** Sets if cell is enabled. Affects all wifi-cell associations */
-    public static void setCellEnabled(Context context, int cellId, int lac, boolean enabled) {
+    public static void setCellEnabled(Context context, int cellId, int lac, int network, boolean enabled) {
         
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        String key = PREFERENCE_CELL_ENABLED +  cellId + KEY_SEPARATOR + lac;
+        String key = PREFERENCE_CELL_ENABLED + getCellTag(cellId, lac, network);
         
         if (!enabled) {
             p.edit().putBoolean(key, enabled).commit();
@@ -543,7 +640,7 @@ public class DataManager {
             for (Iterator<int[]> iterator = cells.iterator(); iterator.hasNext();) {                                
                 // Iterate over wifi actions
                 int[] cell = iterator.next();
-                if (cell != null && cell.length > 1 && getCellEnabled (context, cell[0], cell[1]))
+                if (cell != null && cell.length > 1 && getCellEnabled (context, cell[0], cell[1], getNetwork(cell)))
                     result++;
             }
         }
@@ -565,11 +662,11 @@ public class DataManager {
     }
 
     /** Get the enabled value of a wifi cell preference */
-    public static boolean getWifiCellSelected(Context context, String wifi, int cellId, int lac) {
+    public static boolean getWifiCellSelected(Context context, String wifi, int cellId, int lac, int network) {
         
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
         String base64 = Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
-        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + cellId + KEY_SEPARATOR + lac;
+        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + getCellTag(cellId, lac, network);
         boolean result = false;
         
         // Version <15 store this preference as String and will throw ClassCastException first time
@@ -577,42 +674,62 @@ public class DataManager {
             result = p.getBoolean(key, false);
         }
         catch (Exception e) {
-            setWifiCellSelected(context, wifi, cellId, lac, false);
+            setWifiCellSelected(context, wifi, cellId, lac, network, false);
         }
         
         return result;
     }
     
     /** Set the enabled value of a wifi cell preference */
-    public static void setWifiCellSelected(Context context, String wifi, int cellId, int lac, boolean enabled) {
+    public static void setWifiCellSelected(Context context, String wifi, int cellId, int lac, int network, boolean enabled) {
         
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
         String base64 = Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
-        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + cellId + KEY_SEPARATOR + lac;
+        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + getCellTag(cellId, lac, network);
         p.edit().putBoolean(key, enabled).commit();
     }
 
     /** Delete a wifi-cell preference */
-    public static void deleteWifiCell(Context context, String wifi, int cellId, int lac) {
+    public static void deleteWifiCell(Context context, String wifi, int cellId, int lac, int network) {
         
         // Removes the wifi-cell association
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
         String base64 = Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
-        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + cellId + KEY_SEPARATOR + lac;
+        String key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + getCellTag(cellId, lac, network);
         p.edit().remove(key).commit();        
         
+        // Removes the cell from the wifi location fingerprint, keyed without network, unless the wifi is still
+        // associated to the same cell id and lac in another network
+        if (!hasWifiCell(context, wifi, cellId, lac)) {
+            FingerprintIndex.getInstance(context).removeCell(context, wifi, FingerprintIndex.getCellKey(cellId, lac));
+        }
+        AssociationConfidence.getInstance(context).removeCell(context, wifi, new CellIdentity(network, lac, cellId));
+        PlaceClusters.getInstance().onWifiCellsDeleted();
+        AssociationShards.getInstance().onWifiCellsDeleted();
+        
         // Cleans cell enabled/disabled mark if it is the last wifi the cell is assigned to
-        Set<String> wifis = getWifisByCell(context, cellId, lac);
+        Set<String> wifis = getWifisByCell(context, cellId, lac, network);
         if (wifis == null || wifis.size() <= 0) {
-            setCellEnabled(context, cellId, lac, true);
+            setCellEnabled(context, cellId, lac, network, true);
         }                                
     }
     
+    /** Checks if a wifi is associated to a cell id and lac in any network */
+    private static boolean hasWifiCell(Context context, String wifi, int cellId, int lac) {
+
+        boolean result = false;
+        for (Iterator<int[]> iterator = getCellsbyWifi(context, wifi).iterator(); iterator.hasNext() && !result;) {
+            int[] cell = iterator.next();
+            result = (cell[0] == cellId) && (cell[1] == lac);
+        }
+        return result;
+    }
+    
     /** 
      * Save a Wifi and associated Cell in the preferences 
      * @return true if wifi cell did not exist before and was added 
      * */
-    public static boolean addWifiCell(Context context, String wifi, int cellId, int lac) {
+    public static boolean addWifiCell(Context context, String wifi, int cellId, int lac, int network) {
 
         // Adds the wifi preference
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
@@ -622,12 +739,22 @@ public class DataManager {
         
         // Saves the wifi cell association preference and commits
         String base64 = Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
-        key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + cellId + KEY_SEPARATOR + lac;
+        key = PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + getCellTag(cellId, lac, network);
         boolean result = !p.contains(key);
         //editor.putString(key, wifi).commit();
-        editor.putBoolean(key, getWifiCellSelected(context, wifi, cellId, lac));
+        editor.putBoolean(key, getWifiCellSelected(context, wifi, cellId, lac, network));
         editor.commit();
         
+        // Joins the places of the wifi and the cell
+        if (result) {
+            CellIdentity cell = new CellIdentity(network, lac, cellId);
+            PlaceClusters.getInstance().onWifiCellAdded(wifi, cell);
+            AssociationShards.getInstance().onWifiCellAdded(wifi, cell);
+            if (network == CellIdentity.NETWORK_UNKNOWN) {
+                addLegacyCell(cellId, lac);
+            }
+        }
+        
         return result;
     }
 
@@ -672,17 +799,23 @@ public class DataManager {
             }
         }
         
+        // Deletes the wifi location fingerprint
+        FingerprintIndex.getInstance(context).remove(context, wifi);
+        AssociationConfidence.getInstance(context).remove(context, wifi);
+        PlaceClusters.getInstance().onWifiCellsDeleted();
+        AssociationShards.getInstance().onWifiCellsDeleted();
+        
         // Enable all cells whose wifi-cell has been deleted and don't belong to another cell
         deletedCells.removeAll(remainigCells);
         for (int[] element : deletedCells ) {
             if (element != null && element.length > 1) {
-                DataManager.setCellEnabled(context, element[0], element[1], true);
+                DataManager.setCellEnabled(context, element[0], element[1], getNetwork(element), true);
             }
         }
     }
 
     /** Gets Wifis associated with a given cell */
-    public static Set<String> getWifisByCell(Context context, int cellId, int lac) {
+    public static Set<String> getWifisByCell(Context context, int cellId, int lac, int network) {
 
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
         Set<String> keys = p.getAll().keySet();
@@ -690,13 +823,26 @@ public class DataManager {
 
         for (Iterator<String> iterator = keys.iterator(); iterator.hasNext();) {
             String key = iterator.next();
-            if (key.startsWith(PREFERENCE_WIFICELL) && key.endsWith(KEY_SEPARATOR + cellId + KEY_SEPARATOR + lac)) {
+            if (key.startsWith(PREFERENCE_WIFICELL) && key.endsWith(KEY_SEPARATOR + getCellTag(cellId, lac, network))) {
                 result.add(getWifiOfWifiCellPreference(key));
             }
         }
 
         return result;
     }
+
+    /** Gets the keys of all wifi-cell preferences */
+    public static List<String> getWifiCellKeys(Context context) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        List<String> result = new ArrayList<String>();
+        for (String key : p.getAll().keySet()) {
+            if (key.startsWith(PREFERENCE_WIFICELL)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
         
     /** Parses wifi cell preference key to return wifi name */
     public static String getWifiOfWifiCellPreference(String wifiCellPreferenceKey) {
@@ -720,12 +866,15 @@ public class DataManager {
     /** Parses wifi cell preference key to return cell id and lac */    
     public static int[] getCellOfWifiCellPreference(String wifiCellPreferenceKey) {
 
-        int[] cell = { 0, 0 };
+        int[] cell = { 0, 0, CellIdentity.NETWORK_UNKNOWN };
         if (wifiCellPreferenceKey != null && wifiCellPreferenceKey.startsWith(PREFERENCE_WIFICELL)) {
             String parts[] = wifiCellPreferenceKey.split(KEY_SEPARATOR);
             try {
                 cell[0] = Integer.parseInt(parts[3]);
                 cell[1] = Integer.parseInt(parts[4]);
+                if (parts.length > 5) {
+                    cell[2] = Integer.parseInt(parts[5]);
+                }
             }
             catch (NumberFormatException e) {
                 Log.e(LOGTAG, Log.getStackTraceString(e));
@@ -742,6 +891,85 @@ public class DataManager {
         return cell;
     }
 
+    /** Returns the network of a cell, or unknown if the cell has none */
+    public static int getNetwork(int[] cell) {
+        return (cell != null && cell.length > 2) ? cell[2] : CellIdentity.NETWORK_UNKNOWN;
+    }
+
+    /** Returns the part of the keys of cell preferences that identifies a cell. Cells of unknown network use legacy form */
+    public static String getCellTag(int cellId, int lac, int network) {
+        String result = cellId + KEY_SEPARATOR + lac;
+        return (network != CellIdentity.NETWORK_UNKNOWN) ? result + KEY_SEPARATOR + network : result;
+    }
+
+    /** Returns the key of the preference of a wifi-cell association */
+    public static String getWifiCellPreferenceKey(String wifi, int cellId, int lac, int network) {
+        String base64 = Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
+        return PREFERENCE_WIFICELL + base64 + KEY_SEPARATOR + getCellTag(cellId, lac, network);
+    }
+
+    /** Remembers a cell saved without network, if cells saved so were already looked up */
+    private static synchronized void addLegacyCell(int cellId, int lac) {
+        if (sLegacyCells != null) {
+            sLegacyCells.add(FingerprintIndex.getCellKey(cellId, lac));
+        }
+    }
+
+    /**
+     * Qualifies with its network the preferences of a cell saved while its network was not known, once it is observed
+     * in a known network. Cells saved so are looked up once, so cells already qualified are skipped without reading
+     * the preferences
+     * @return true if preferences of the cell were migrated
+     */
+    public static synchronized boolean migrateCell(Context context, int cellId, int lac, int network) {
+
+        boolean result = false;
+        if (network != CellIdentity.NETWORK_UNKNOWN) {
+            SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+            
+            // Looks up the cells saved without network
+            if (sLegacyCells == null) {
+                sLegacyCells = new HashSet<Long>();
+                for (String key : p.getAll().keySet()) {
+                    if (key.startsWith(PREFERENCE_WIFICELL) || key.startsWith(PREFERENCE_CELL_ENABLED)) {
+                        String[] parts = key.split(KEY_SEPARATOR);
+                        if (parts.length == 5) {
+                            try {
+                                sLegacyCells.add(FingerprintIndex.getCellKey(Integer.parseInt(parts[3]), Integer.parseInt(parts[4])));
+                            }
+                            catch (NumberFormatException e) {
+                                Log.e(LOGTAG, Log.getStackTraceString(e));
+                            }
+                        }
+                    }
+                }
+            }
+            
+            // Renames the preferences of the cell adding the network
+            if (sLegacyCells.remove(FingerprintIndex.getCellKey(cellId, lac))) {
+                String tag = getCellTag(cellId, lac, CellIdentity.NETWORK_UNKNOWN);
+                Editor editor = p.edit();
+                for (Map.Entry<String, ?> entry : p.getAll().entrySet()) {
+                    String key = entry.getKey();
+                    if ((key.startsWith(PREFERENCE_WIFICELL) || key.startsWith(PREFERENCE_CELL_ENABLED))
+                            && key.endsWith(KEY_SEPARATOR + tag) && key.split(KEY_SEPARATOR).length == 5
+                            && entry.getValue() instanceof Boolean) {
+                        editor.remove(key);
+                        editor.putBoolean(key + KEY_SEPARATOR + network, (Boolean) entry.getValue());
+                    }
+                }
+                editor.commit();
+                PlaceClusters.getInstance().onWifiCellsDeleted();
+                AssociationShards.getInstance().onWifiCellsDeleted();
+                result = true;
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOGTAG, "DataManager: Cell " + tag + " migrated to network " + network);
+                }
+            }
+        }
+        return result;
+    }
+
     /** Parses wifi preference key to return wifi name */
     public static String getWifiOfWifiPreference(String wifiPreferenceKey) {
         String wifi = null;
@@ -758,7 +986,7 @@ public class DataManager {
         Set<String> result = null;
 
         if (currentCell != null && currentCell[0] != 0 && currentCell[1] != 0) {
-            result = getWifisByCell(context, currentCell[0], currentCell[1]);
+            result = getWifisByCell(context, currentCell[0], currentCell[1], getNetwork(currentCell));
         }
 
         return result;
@@ -771,7 +999,7 @@ public class DataManager {
         int result = 0;
 
         if (currentCell != null && currentCell[0] != 0 && currentCell[1] != 0) {
-            Set <String> currentWifis = getWifisByCell(context, currentCell[0], currentCell[1]);
+            Set <String> currentWifis = getWifisByCell(context, currentCell[0], currentCell[1], getNetwork(currentCell));
             result = currentWifis != null ? getCountWifisEnabled(context, currentWifis) : 0;
         }
 
@@ -785,7 +1013,7 @@ public class DataManager {
         boolean result = true;
 
         if (currentCell != null && currentCell.length > 1 && currentCell[0] != 0 && currentCell[1] != 0) {
-            result = getCellEnabled(context, currentCell[0], currentCell[1]);
+            result = getCellEnabled(context, currentCell[0], currentCell[1], getNetwork(currentCell));
         }
 
         return result;
@@ -810,6 +1038,79 @@ public class DataManager {
         return result;
     }
 
+    /** Returns the location fingerprints of all wifis as cell keys in order of last observation */
+    public static Map<String, long[]> getFingerprints(Context context) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, long[]> result = new HashMap<String, long[]>();
+
+        for (Map.Entry<String, ?> entry : p.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(PREFERENCE_FINGERPRINT) && entry.getValue() instanceof String) {
+                try {
+                    String wifi = new String(Base64.decode(key.substring(PREFERENCE_FINGERPRINT.length()), Base64.NO_WRAP));
+                    byte[] data = Base64.decode((String) entry.getValue(), Base64.NO_WRAP);
+                    long[] cells = new long[data.length / 8];
+                    ByteBuffer.wrap(data).asLongBuffer().get(cells);
+                    result.put(wifi, cells);
+                }
+                catch (IllegalArgumentException e) {
+                    Log.e(LOGTAG, Log.getStackTraceString(e));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Saves the location fingerprint of a wifi as cell keys in order of last observation. Null or empty removes it */
+    public static void setFingerprint(Context context, String wifi, long[] cells) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = PREFERENCE_FINGERPRINT + Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
+        if (cells != null && cells.length > 0) {
+            ByteBuffer data = ByteBuffer.allocate(cells.length * 8);
+            data.asLongBuffer().put(cells);
+            p.edit().putString(key, Base64.encodeToString(data.array(), Base64.NO_WRAP)).commit();
+        }
+        else {
+            p.edit().remove(key).commit();
+        }
+    }
+
+    /** Returns the association confidences of all wifis, serialized by wifi */
+    public static Map<String, byte[]> getConfidences(Context context) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+
+        for (Map.Entry<String, ?> entry : p.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(PREFERENCE_CONFIDENCE) && entry.getValue() instanceof String) {
+                try {
+                    String wifi = new String(Base64.decode(key.substring(PREFERENCE_CONFIDENCE.length()), Base64.NO_WRAP));
+                    result.put(wifi, Base64.decode((String) entry.getValue(), Base64.NO_WRAP));
+                }
+                catch (IllegalArgumentException e) {
+                    Log.e(LOGTAG, Log.getStackTraceString(e));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Saves the serialized association confidences of a wifi. Null or empty removes them */
+    public static void setConfidence(Context context, String wifi, byte[] data) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = PREFERENCE_CONFIDENCE + Base64.encodeToString(wifi.getBytes(), Base64.NO_WRAP);
+        if (data != null && data.length > 0) {
+            p.edit().putString(key, Base64.encodeToString(data, Base64.NO_WRAP)).commit();
+        }
+        else {
+            p.edit().remove(key).commit();
+        }
+    }
+
     /** Get the cells associated to a wifi */
     public static Vector<int[]> getCellsbyWifi(Context context, String wifi) {
 
@@ -1105,6 +1406,336 @@ public class DataManager {
         }
     }
     
+    /** Returns the service state saved or null if there is none */
+    public static ServiceState getServiceState(Context context) {
+
+        ServiceState result = null;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        String data = p.getString(PREFERENCE_SERVICE_STATE, null);
+        
+        // Decodes the binary form of the state
+        if (data != null) {
+            try {
+                result = ServiceState.fromByteArray(Base64.decode(data, Base64.NO_WRAP));
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        
+        // Builds the state from the preferences used by previous versions
+        if (result == null && p.contains(PREFERENCE_STATUS)) {
+            result = new ServiceState();
+            int[] currentCell = getCurrentCell(context);
+            result.setCurrentCell(currentCell[0], currentCell[1], getNetwork(currentCell));
+            result.setActionEnabled(StateMachine.StateAction.ON, getCurrentAction(context, StateMachine.StateAction.ON));
+            result.setActionEnabled(StateMachine.StateAction.OFF, getCurrentAction(context, StateMachine.StateAction.OFF));
+            result.setCurrentWifi(getCurrentWifi(context));
+            result.setPendingMobileData(getPendingMobileDataAction(context));
+            StateEvent[] inflight = getInflightWifiAction(context);
+            if (inflight != null) {
+                result.setInflightWifiState(inflight[0], inflight[1]);
+            }
+        }
+        
+        return result;
+    }
+
+    /** 
+     * Saves in a single commit the state machine state, the service state and the current cell and wifi read by the
+     * UI. Null state clears them
+     */
+    public static void setServiceState(Context context, StateMachine.State state, ServiceState serviceState) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        Editor editor = p.edit();
+        
+        if (state != null) {
+            editor.putString(PREFERENCE_STATUS, state.name());
+        }
+        else {
+            editor.remove(PREFERENCE_STATUS);
+        }
+
+        int cid = (serviceState != null) ? serviceState.getCid() : 0;
+        int lac = (serviceState != null) ? serviceState.getLac() : 0;
+        if (cid != 0 && lac != 0) {
+            editor.putString(PREFERENCE_CURRENT_CELL, getCellTag(cid, lac, serviceState.getNetwork()));
+        }
+        else {
+            editor.remove(PREFERENCE_CURRENT_CELL);
+        }
+
+        String wifi = (serviceState != null) ? serviceState.getCurrentWifi() : null;
+        if (wifi != null) {
+            editor.putString(PREFERENCE_CURRENT_WIFI, wifi);
+        }
+        else {
+            editor.remove(PREFERENCE_CURRENT_WIFI);
+        }
+
+        if (serviceState != null) {
+            editor.putString(PREFERENCE_SERVICE_STATE, Base64.encodeToString(serviceState.toByteArray(), Base64.NO_WRAP));
+        }
+        else {
+            editor.remove(PREFERENCE_SERVICE_STATE);
+        }
+        
+        // Removes the preferences used by previous versions, now kept in the service state
+        editor.remove(PREFERENCE_CURRENT_ACTION + StateMachine.StateAction.ON.name());
+        editor.remove(PREFERENCE_CURRENT_ACTION + StateMachine.StateAction.OFF.name());
+        editor.remove(PREFERENCE_PENDING_MOBILE_DATA_ACTION);
+        editor.remove(PREFERENCE_INFLIGHT_WIFI_ACTION);
+        editor.commit();
+    }
+    
+    /** Returns radio toggle budget preference in toggles per hour and radio */
+    public static int getToggleBudget(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_TOGGLE_BUDGET, Integer.toString(PREFERENCE_DEFAULT_TOGGLE_BUDGET)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_TOGGLE_BUDGET;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets radio toggle budget preference in toggles per hour and radio */
+    public static void setToggleBudget(Context context, int budget) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_TOGGLE_BUDGET, String.valueOf(budget)).commit();
+    }
+
+    /** Returns radio toggle budget policy preference */
+    public static RadioGovernor.Policy getToggleBudgetPolicy(Context context) {
+
+        RadioGovernor.Policy result = PREFERENCE_DEFAULT_TOGGLE_BUDGET_POLICY;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        String policy = p.getString(PREFERENCE_TOGGLE_BUDGET_POLICY, null);
+        if (policy != null) {
+            try {
+                result = RadioGovernor.Policy.valueOf(policy);
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        return result;
+    }
+
+    /** Sets radio toggle budget policy preference */
+    public static void setToggleBudgetPolicy(Context context, RadioGovernor.Policy policy) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        if (policy != null) {
+            p.edit().putString(PREFERENCE_TOGGLE_BUDGET_POLICY, policy.name()).commit();
+        }
+        else {
+            p.edit().remove(PREFERENCE_TOGGLE_BUDGET_POLICY).commit();
+        }
+    }
+    
+    /** Returns event recorder preference */
+    public static boolean getEventRecorder(Context context) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        return p.getBoolean(PREFERENCE_EVENT_RECORDER, PREFERENCE_DEFAULT_EVENT_RECORDER);
+    }
+
+    /** Sets event recorder preference */
+    public static void setEventRecorder(Context context, boolean status) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putBoolean(PREFERENCE_EVENT_RECORDER, status).commit();
+    }
+    
+    /** Returns event coalescing window preference in ms. Zero or less disables coalescing */
+    public static int getCoalescingWindow(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_COALESCING_WINDOW, Integer.toString(PREFERENCE_DEFAULT_COALESCING_WINDOW)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_COALESCING_WINDOW;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets event coalescing window preference in ms */
+    public static void setCoalescingWindow(Context context, int window) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_COALESCING_WINDOW, String.valueOf(window)).commit();
+    }
+    
+    /** 
+     * Returns fingerprint match threshold preference in percent of cells shared by the cells observed and the location
+     * fingerprint of a wifi. Zero or less disables fingerprint matching
+     */
+    public static int getFingerprintThreshold(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_FINGERPRINT_THRESHOLD, Integer.toString(PREFERENCE_DEFAULT_FINGERPRINT_THRESHOLD)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_FINGERPRINT_THRESHOLD;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets fingerprint match threshold preference in percent */
+    public static void setFingerprintThreshold(Context context, int threshold) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_FINGERPRINT_THRESHOLD, String.valueOf(threshold)).commit();
+    }
+    
+    /** 
+     * Returns cell duplicate window preference in seconds. Cell changes repeating the last one within the window are not
+     * forwarded to the service. Zero or less forwards all of them
+     */
+    public static int getCellDuplicateWindow(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_CELL_DUPLICATE_WINDOW, Integer.toString(PREFERENCE_DEFAULT_CELL_DUPLICATE_WINDOW)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_CELL_DUPLICATE_WINDOW;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets cell duplicate window preference in seconds */
+    public static void setCellDuplicateWindow(Context context, int window) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_CELL_DUPLICATE_WINDOW, String.valueOf(window)).commit();
+    }
+    
+    /** 
+     * Returns maximum cell poll interval preference in minutes. Polls are scheduled between frequency preference and
+     * this interval
+     */
+    public static int getMaxPollInterval(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_MAX_POLL_INTERVAL, Integer.toString(PREFERENCE_DEFAULT_MAX_POLL_INTERVAL)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_MAX_POLL_INTERVAL;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets maximum cell poll interval preference in minutes */
+    public static void setMaxPollInterval(Context context, int interval) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_MAX_POLL_INTERVAL, String.valueOf(interval)).commit();
+    }
+    
+    /** 
+     * Returns cell transition prediction threshold preference in percent. An early poll is scheduled when the 
+     * probability of entering a known cell next reaches it. Zero or less disables prediction
+     */
+    public static int getPredictionThreshold(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_PREDICTION_THRESHOLD, Integer.toString(PREFERENCE_DEFAULT_PREDICTION_THRESHOLD)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_PREDICTION_THRESHOLD;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets cell transition prediction threshold preference in percent */
+    public static void setPredictionThreshold(Context context, int threshold) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_PREDICTION_THRESHOLD, String.valueOf(threshold)).commit();
+    }
+    
+    /** Returns association confidence threshold preference in percent */
+    public static int getConfidenceThreshold(Context context) {
+
+        int result;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            result = Integer.parseInt(p.getString(PREFERENCE_CONFIDENCE_THRESHOLD, Integer.toString(PREFERENCE_DEFAULT_CONFIDENCE_THRESHOLD)));
+        }
+        catch (NumberFormatException e) {
+            result = PREFERENCE_DEFAULT_CONFIDENCE_THRESHOLD;
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    /** Sets association confidence threshold preference in percent */
+    public static void setConfidenceThreshold(Context context, int threshold) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_CONFIDENCE_THRESHOLD, String.valueOf(threshold)).commit();
+    }
+
+    /** Returns the serialized cell transition model or null if it was not saved */
+    public static byte[] getTransitions(Context context) {
+
+        byte[] result = null;
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = p.getString(PREFERENCE_TRANSITIONS, null);
+        if (value != null) {
+            try {
+                result = Base64.decode(value, Base64.NO_WRAP);
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        return result;
+    }
+
+    /** Saves the serialized cell transition model */
+    public static void setTransitions(Context context, byte[] data) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putString(PREFERENCE_TRANSITIONS, Base64.encodeToString(data, Base64.NO_WRAP)).commit();
+    }
+    
+    /** Returns stage timing preference */
+    public static boolean getStageTiming(Context context) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        return p.getBoolean(PREFERENCE_STAGE_TIMING, PREFERENCE_DEFAULT_STAGE_TIMING);
+    }
+
+    /** Sets stage timing preference */
+    public static void setStageTiming(Context context, boolean status) {
+
+        SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+        p.edit().putBoolean(PREFERENCE_STAGE_TIMING, status).commit();
+    }
+    
     /** Returns if it is full version of the app*/
     public static boolean isFullVersion () {
         return FULL_VERSION;
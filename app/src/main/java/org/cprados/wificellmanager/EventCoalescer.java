@@ -0,0 +1,121 @@
+/*
+ * EventCoalescer.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import org.cprados.wificellmanager.sys.CellSnapshot;
+import org.cprados.wificellmanager.sys.CellStateManager;
+import org.cprados.wificellmanager.sys.WakeLockManager;
+
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.Bundle;
+
+/**
+ * Merges the cell and wifi state change events received within a short window into a single event, so a burst of
+ * broadcasts is evaluated once. The merged event carries the extras of the latest wifi event and the latest cell event
+ * and the action of the latest event received. Explicit action requests and periodic cell polls, which carry no cell
+ * observation, are never merged.
+ */
+public class EventCoalescer {
+
+    /** Latest cell change event of the batch */
+    private Intent mCellIntent;
+
+    /** Latest wifi state change event of the batch */
+    private Intent mWifiIntent;
+
+    /** Action of the latest event of the batch, null if there is no batch pending */
+    private String mAction;
+
+    /** Number of events in the batch */
+    private int mCount;
+
+    /** Number of references to the wake lock held by the events of the batch */
+    private int mWakeLocks;
+
+    /** Number of events saved by merging them into others */
+    private int mMerged;
+
+    /** Checks if an event reports a cell or wifi state change and can be merged */
+    public static boolean isMergeable(Intent intent) {
+
+        String action = (intent != null) ? intent.getAction() : null;
+        return action != null && ((action.equals(CellStateManager.CELL_CHANGE_ACTION) && intent.hasExtra(CellSnapshot.EXTRA_CELL))
+                || action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION) || action.equals(WifiManager.WIFI_STATE_CHANGED_ACTION));
+    }
+
+    /** Adds a mergeable event to the batch. Returns true if the event starts a new batch */
+    public synchronized boolean merge(Intent intent) {
+
+        boolean result = (mAction == null);
+        mAction = intent.getAction();
+        if (mAction.equals(CellStateManager.CELL_CHANGE_ACTION)) {
+            mCellIntent = intent;
+        }
+        else {
+            mWifiIntent = intent;
+        }
+        mCount++;
+        mWakeLocks += WakeLockManager.getWakeLocks(intent);
+        return result;
+    }
+
+    /** Checks if there is a batch pending */
+    public synchronized boolean hasPending() {
+        return mAction != null;
+    }
+
+    /** Checks if the pending batch has a cell change event */
+    public synchronized boolean hasCellEvent() {
+        return mCellIntent != null;
+    }
+
+    /** Returns the event merging the pending batch and clears it, or null if there is no batch pending */
+    public synchronized Intent take() {
+
+        Intent result = null;
+        if (mAction != null) {
+            result = (mWifiIntent != null) ? new Intent(mWifiIntent) : new Intent();
+            Bundle cellExtras = (mCellIntent != null) ? mCellIntent.getExtras() : null;
+            if (cellExtras != null) {
+                result.putExtras(cellExtras);
+            }
+            result.setAction(mAction);
+
+            // The merged event holds the references to the wake lock of all the events of the batch
+            result.removeExtra(WakeLockManager.EXTRA_WAKE_LOCKS);
+            if (mWakeLocks > 0) {
+                result.putExtra(WakeLockManager.EXTRA_WAKE_LOCKS, mWakeLocks);
+            }
+
+            mMerged += mCount - 1;
+            mCellIntent = null;
+            mWifiIntent = null;
+            mAction = null;
+            mCount = 0;
+            mWakeLocks = 0;
+        }
+        return result;
+    }
+
+    /** Returns the number of events saved by merging them into others */
+    public synchronized int getMerged() {
+        return mMerged;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * EventQueue.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import java.util.LinkedList;
+
+import org.cprados.wificellmanager.sys.CellSnapshot;
+import org.cprados.wificellmanager.sys.CellStateManager;
+import org.cprados.wificellmanager.sys.Clock;
+import org.cprados.wificellmanager.sys.WakeLockManager;
+
+import android.content.Intent;
+
+/**
+ * Queue of events waiting to be processed by the manager service. Events are served by priority and in order of
+ * arrival within the same priority. Periodic cell polls are dropped when a fresher cell event is already queued,
+ * releasing the wake lock references they hold.
+ */
+public class EventQueue {
+
+    /** Priority of events requested by the user from the UI */
+    public static final int PRIORITY_USER = 0;
+
+    /** Priority of explicit action requests and service initialization */
+    public static final int PRIORITY_EXPLICIT = 1;
+
+    /** Priority of cell and wifi state changes reported by the system */
+    public static final int PRIORITY_ENVIRONMENT = 2;
+
+    /** Priority of periodic cell polls */
+    public static final int PRIORITY_POLL = 3;
+
+    /** Number of priorities */
+    private static final int PRIORITIES = 4;
+
+    /** Event waiting in the queue */
+    public static class Entry {
+
+        /** Intent of the event */
+        public final Intent intent;
+
+        /** Start id the service received the event with */
+        public final int startId;
+
+        /** Task to be run once the event has been processed, might be null */
+        public final Runnable callback;
+
+        /** Time the event was queued in ms since boot */
+        private final long mTime;
+
+        private Entry(Intent intent, int startId, Runnable callback, long time) {
+            this.intent = intent;
+            this.startId = startId;
+            this.callback = callback;
+            mTime = time;
+        }
+    }
+
+    /** Events queued by priority */
+    private final LinkedList<Entry>[] mQueues;
+
+    /** Number of events queued */
+    private int mDepth;
+
+    /** Maximum number of events queued */
+    private int mMaxDepth;
+
+    /** Number of events served */
+    private int mServed;
+
+    /** Number of polls dropped */
+    private int mDropped;
+
+    /** Total and maximum time events waited in the queue in ms */
+    private long mTotalWait;
+    private long mMaxWait;
+
+    /** Creates an empty queue */
+    @SuppressWarnings("unchecked")
+    public EventQueue() {
+        mQueues = new LinkedList[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            mQueues[i] = new LinkedList<Entry>();
+        }
+    }
+
+    /** Returns the priority of an event received by the service */
+    public static int getPriority(Intent intent) {
+
+        int result = PRIORITY_ENVIRONMENT;
+        String action = (intent != null) ? intent.getAction() : null;
+        if (action != null) {
+            if (action.equals(ManagerService.INIT_ACTION) || action.startsWith(RequestedActionManager.EXPLICIT_ACTION_REQ)) {
+                result = PRIORITY_EXPLICIT;
+            }
+            else if (isCellEvent(intent) && !intent.hasExtra(CellSnapshot.EXTRA_CELL)) {
+                result = PRIORITY_POLL;
+            }
+        }
+        return result;
+    }
+
+    /** Checks if an event reports a cell change, or carries one as a merged batch whose latest event was a wifi change */
+    private static boolean isCellEvent(Intent intent) {
+        return intent != null && (CellStateManager.CELL_CHANGE_ACTION.equals(intent.getAction())
+                || intent.hasExtra(CellSnapshot.EXTRA_CELL));
+    }
+
+    /**
+     * Queues an event. Returns false if it is a poll dropped because there is a cell event already queued. A cell event
+     * removes the polls queued before it
+     */
+    public synchronized boolean offer(Intent intent, int startId, int priority, Runnable callback) {
+
+        boolean result = true;
+        if (priority == PRIORITY_POLL) {
+            for (int i = 0; i < PRIORITIES && result; i++) {
+                for (Entry entry : mQueues[i]) {
+                    if (isCellEvent(entry.intent)) {
+                        result = false;
+                        break;
+                    }
+                }
+            }
+        }
+        else if (isCellEvent(intent)) {
+            int stale = mQueues[PRIORITY_POLL].size();
+            for (Entry entry : mQueues[PRIORITY_POLL]) {
+                WakeLockManager.getWakeLockManager().releaseWakeLock(entry.intent);
+            }
+            mQueues[PRIORITY_POLL].clear();
+            mDepth -= stale;
+            mDropped += stale;
+        }
+
+        if (result) {
+            mQueues[priority].addLast(new Entry(intent, startId, callback, Clock.getClock().elapsedRealtime()));
+            mDepth++;
+            mMaxDepth = Math.max(mMaxDepth, mDepth);
+        }
+        else {
+            drop(intent);
+        }
+        return result;
+    }
+
+    /** Drops a poll not queued because a fresher cell event is pending, releasing the wake lock references it holds */
+    public synchronized void drop(Intent intent) {
+        WakeLockManager.getWakeLockManager().releaseWakeLock(intent);
+        mDropped++;
+    }
+
+    /** Removes and returns the first event of the highest priority, or null if the queue is empty */
+    public synchronized Entry poll() {
+
+        Entry result = null;
+        for (int i = 0; i < PRIORITIES && result == null; i++) {
+            result = mQueues[i].poll();
+        }
+
+        if (result != null) {
+            long wait = Clock.getClock().elapsedRealtime() - result.mTime;
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            mServed++;
+            mDepth--;
+        }
+        return result;
+    }
+
+    /** Returns the number of events queued */
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    /** Returns a summary of the queue metrics */
+    @Override
+    public synchronized String toString() {
+        return "depth: " + mDepth + " (max " + mMaxDepth + "), served: " + mServed + ", dropped: " + mDropped +
+                ", wait avg: " + (mServed > 0 ? mTotalWait / mServed : 0) + " ms, max: " + mMaxWait + " ms";
+    }
+}
@@ -21,10 +21,11 @@ package org.cprados.wificellmanager;
 import java.util.Calendar;
 import java.util.Date;
 
+import org.cprados.wificellmanager.sys.Clock;
+import org.cprados.wificellmanager.sys.DeviceGateway;
+import org.cprados.wificellmanager.sys.EventRecorder;
 import org.cprados.wificellmanager.sys.WakeLockManager;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -68,11 +69,10 @@ public class EventReceiver extends BroadcastReceiver {
     /** Configures alarm manager to send broadcasts to this receiver periodically at a given frequency (given in milliseconds)*/
     public static void requestPeriodicEvents (Context context, int[] timeOfDay, long frequency, String action, Intent intent, boolean enable) {
 
-        // Gets alarm manager
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Gets alarm service
+        DeviceGateway.Alarms am = DeviceGateway.getGateway(context).getAlarms();
 
-        // Creates intent message to wrap it within a pending intent
-        // object to be given to alarm manager service
+        // Creates intent message to be broadcast by the alarm service
         if (intent == null) {
             intent = new Intent(context, EventReceiver.class); 
         }
@@ -84,26 +84,25 @@ public class EventReceiver extends BroadcastReceiver {
         if (action != null) {
             intent.setAction(action);
         }        
-        PendingIntent pIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
         
         // Schedules or cancels the alarm
         if (enable) {
             long time = 0;
             if ((timeOfDay!=null) && (timeOfDay.length > 1)) {
-                am.setRepeating(AlarmManager.RTC_WAKEUP, time = getNextTimeMillis(timeOfDay[0],timeOfDay[1]), frequency, pIntent);               
+                am.schedule(intent, time = getNextTimeMillis(timeOfDay[0],timeOfDay[1]), frequency, true);               
                 if (BuildConfig.DEBUG) {
                     Log.d(LOGTAG, "EventReceiver: Repeating Alarm set: " +  (new Date(time)) + "), frequency(ms)=" + frequency + ", action=" + action);
                 }
             }
             else {
-                am.setInexactRepeating(AlarmManager.RTC_WAKEUP, time = System.currentTimeMillis(), frequency, pIntent);
+                am.schedule(intent, time = Clock.getClock().currentTimeMillis(), frequency, false);
                 if (BuildConfig.DEBUG) {
                     Log.d(LOGTAG, "EventReceiver: Inexact Repeating Alarm set: " + (new Date(time)) + "), frequency(ms)=" + frequency + ", action=" + action);
                 }
             }
         }
         else {
-            am.cancel(pIntent);
+            am.cancel(intent);
             if (BuildConfig.DEBUG) {
                 Log.d(LOGTAG, "EventReceiver: Alarm canceled: action=" + action);
             }        
@@ -113,11 +112,10 @@ public class EventReceiver extends BroadcastReceiver {
     /** Configures alarm manager to send a broadcast to this receiver at a given time */
     public static void requestEvent(Context context, Date date, String action, Intent intent, boolean enable) {
 
-        // Gets alarm manager
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Gets alarm service
+        DeviceGateway.Alarms am = DeviceGateway.getGateway(context).getAlarms();
 
-        // Creates intent message to wrap it within a pending intent
-        // object to be given to alarm manager service
+        // Creates intent message to be broadcast by the alarm service
         if (intent == null) {
             intent = new Intent(context, EventReceiver.class); 
         }
@@ -130,23 +128,21 @@ public class EventReceiver extends BroadcastReceiver {
             intent.setAction(action);
         }   
 
-        PendingIntent pIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
-        
         // Schedules or cancels the alarm
         if (enable) {
             if (date != null) {
-                am.set(AlarmManager.RTC_WAKEUP, date.getTime(), pIntent);
+                am.schedule(intent, date.getTime(), 0, true);
             }
         }
         else {
-            am.cancel(pIntent);
+            am.cancel(intent);
         }        
     }
     
     /** Given an hour and minute, returns the time in ms since 1/1/1970 of the next occurrence */
     private static long getNextTimeMillis(int hour, int minute) {
         
-        Calendar now  = Calendar.getInstance(); 
+        Calendar now  = Clock.getClock().getCalendar(); 
         Calendar result  = (Calendar) now.clone();
         
         result.set(Calendar.HOUR_OF_DAY,hour); 
@@ -168,10 +164,15 @@ public class EventReceiver extends BroadcastReceiver {
             Log.d(LOGTAG, "EventReceiver: " + intent);
         }
         
-        // Acquires wake lock
-        WakeLockManager.getWakeLockManager().acquireWakeLock(context.getApplicationContext());         
+        // Records the raw event if recording is active
+        EventRecorder.getInstance().recordEvent(intent);
+
+        // Acquires wake lock on behalf of the event
+        WakeLockManager.getWakeLockManager().acquireWakeLock(context.getApplicationContext(), intent);
         
-        // Forwards the intent to the manager service
-        ManagerService.forwardEvent(context, null, intent);        
+        // Forwards the intent to the manager service, the event releases the wake lock if it is not sent
+        if (!ManagerService.forwardEvent(context, null, intent)) {
+            WakeLockManager.getWakeLockManager().releaseWakeLock(intent);
+        }
     }
 }
\ No newline at end of file
@@ -18,22 +18,39 @@
 
 package org.cprados.wificellmanager;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.cprados.wificellmanager.RequestedActionManager.RequestedAction;
 import org.cprados.wificellmanager.StateMachine.State;
 import org.cprados.wificellmanager.StateMachine.StateAction;
 import org.cprados.wificellmanager.StateMachine.StateEvent;
+import org.cprados.wificellmanager.sys.AssociationConfidence;
+import org.cprados.wificellmanager.sys.AssociationShards;
 import org.cprados.wificellmanager.sys.AuditTrailManager;
 import org.cprados.wificellmanager.sys.AuditTrailManager.ActivityRecord;
+import org.cprados.wificellmanager.sys.CellIdentity;
 import org.cprados.wificellmanager.sys.CellStateListener;
 import org.cprados.wificellmanager.sys.CellStateManager;
+import org.cprados.wificellmanager.sys.Clock;
+import org.cprados.wificellmanager.sys.DeviceSnapshot;
+import org.cprados.wificellmanager.sys.EventRecorder;
+import org.cprados.wificellmanager.sys.FingerprintIndex;
+import org.cprados.wificellmanager.sys.LocationRefresher;
 import org.cprados.wificellmanager.sys.MobileDataManager;
 import org.cprados.wificellmanager.sys.NotificationManager;
+import org.cprados.wificellmanager.sys.PlaceClusters;
+import org.cprados.wificellmanager.sys.RadioGovernor;
+import org.cprados.wificellmanager.sys.RadioGovernor.Radio;
+import org.cprados.wificellmanager.sys.ServiceState;
+import org.cprados.wificellmanager.sys.TransitionPredictor;
 import org.cprados.wificellmanager.sys.WakeLockManager;
 import org.cprados.wificellmanager.sys.WifiStateManager;
 import org.cprados.wificellmanager.ui.DescribeableElement;
@@ -45,8 +62,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -61,11 +82,118 @@ public class ManagerService extends Service {
     /** Action of the intents sent to the service to make initial actions */
     public static final String INIT_ACTION = ManagerService.class.getName() + ".init";
         
+    /** Message requesting the event loop to process the next event of the queue */
+    private static final int MSG_EVENT = 1;
+
+    /** Message requesting the event loop to process the pending batch of coalesced events */
+    private static final int MSG_COALESCED = 2;
+
+    /** Thread where events are processed in order. Shared by service instances so their processing never overlaps */
+    private static HandlerThread sEventThread;
+    
     /** The state machine holding current state of the service and determines actions to be performed on each event */
-    private StateMachine mStateMachine;
+    private volatile StateMachine mStateMachine;
 
-    /** Bundle object containing current state related information */
-    private Bundle mStateData;
+    /** Current state related information */
+    private volatile ServiceState mStateData;
+    
+    /** Handler of the event loop where state is initialized, events processed and state cleared */
+    private Handler mEventHandler;
+    
+    /** Handler of the main thread */
+    private Handler mMainHandler;
+    
+    /** Merges bursts of cell and wifi state change events into one evaluation */
+    private final EventCoalescer mCoalescer = new EventCoalescer();
+    
+    /** Events waiting to be processed by the event loop, served by priority */
+    private final EventQueue mQueue = new EventQueue();
+    
+    /** Number of events received */
+    private volatile int mRawEvents;
+    
+    /** Number of events evaluated */
+    private volatile int mEvaluatedEvents;
+    
+    /** Number of queries made to system services while evaluating events */
+    private volatile int mDeviceQueries;
+    
+    /** Latencies of the stages of event processing */
+    private final StageStats mStageStats = new StageStats();
+    
+    /** Action of the event being processed, stages are timed under it */
+    private String mEventAction;
+    
+    /** Schedules cell location polls adapting their interval to cell and wifi activity */
+    private PollScheduler mPollScheduler;
+    
+    /** Learns cell transitions to anticipate arrivals to known cells */
+    private TransitionPredictor mPredictor;
+    
+    /** Number of cell transitions learnt between saves of the transition model */
+    private static final int TRANSITIONS_SAVE_INTERVAL = 16;
+    
+    /** Number of events validated by the validation benchmark */
+    private static final int VALIDATION_BENCHMARK_EVENTS = 1000;
+    
+    /** Wifi connected and cell of the last association sighting, so each one is sighted once per visit */
+    private String mSightedWifi;
+    private CellIdentity mSightedCell;
+    
+    /** 
+     * Accepts the enabled cells associated to some enabled wifi. Cells of unknown network, as the ones replayed from
+     * recorded events, are taken in current network
+     */
+    private final TransitionPredictor.CellFilter mKnownCells = new TransitionPredictor.CellFilter() {
+        
+        @Override
+        public boolean accept(CellIdentity cell) {
+            ServiceState stateData = mStateData;
+            if (!cell.isQualified() && stateData != null && stateData.getNetwork() != CellIdentity.NETWORK_UNKNOWN) {
+                cell = new CellIdentity(stateData.getNetwork(), cell.lac, cell.cid);
+            }
+            int network = cell.getNetwork();
+            boolean result = false;
+            if (AssociationShards.getInstance().hasShard(ManagerService.this, cell)
+                    && DataManager.getCellEnabled(ManagerService.this, cell.cid, cell.lac, network)) {
+                Set<String> wifis = AssociationShards.getInstance().getWifisByCell(ManagerService.this, cell);
+                result = (wifis != null && DataManager.getCountWifisEnabled(ManagerService.this, wifis) > 0);
+            }
+            return result;
+        }
+    };
+    
+    /** Refreshes preferences UI, posted to the main thread after each event is processed */
+    private final Runnable mRefreshUi = new Runnable() {
+        
+        @Override
+        public void run() {
+            Preferences.requestRefresh(ManagerService.this);
+        }
+    };
+    
+    /** Site where the state machine rules are evaluated, taken from current state data */
+    private final RuleTable.Site mRuleSite = new RuleTable.Site() {
+        
+        @Override
+        public int getDay() {
+            return RuleTable.getDay(Clock.getClock().getCalendar());
+        }
+
+        @Override
+        public String getCellKey() {
+            ServiceState serviceState = mStateData;
+            int cid = serviceState.getCid();
+            int lac = serviceState.getLac();
+            return (cid > CellStateManager.CELL_UNKNOWN && lac > CellStateManager.CELL_UNKNOWN)
+                    ? RuleTable.getCellKey(cid, lac, serviceState.getNetwork()) : null;
+        }
+
+        @Override
+        public String getWifi() {
+            return mStateData.getCurrentWifi();
+        }
+    };
     
     /** Handles service creation */
     @Override
@@ -74,7 +202,71 @@ public class ManagerService extends Service {
             Log.d(LOGTAG, "ManagerService: Creating Service");
         }
 
-        // Constructs the state machine and state data
+        // Creates the handlers of the main thread and the event loop
+        mMainHandler = new Handler();
+        mEventHandler = new Handler(getEventLooper()) {
+            
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                
+                case MSG_EVENT:
+                    // The event might have been dropped from the queue by a fresher one
+                    EventQueue.Entry entry = mQueue.poll();
+                    if (entry != null) {
+                        try {
+                            processEvent(entry.intent, entry.startId);
+                        }
+                        finally {
+                            WakeLockManager.getWakeLockManager().releaseWakeLock(entry.intent);
+                            if (entry.callback != null) {
+                                entry.callback.run();
+                            }
+                        }
+                    }
+                    break;
+                    
+                case MSG_COALESCED:
+                    // The batch might have been already queued if it was flushed 
+                    Intent intent = mCoalescer.take();
+                    if (intent != null) {
+                        queueEvent(intent, msg.arg1, EventQueue.PRIORITY_ENVIRONMENT, null);
+                    }
+                    break;
+                }
+            }
+        };
+        
+        // Initializes state in the event loop, before any event is processed
+        mEventHandler.post(new Runnable() {
+            
+            @Override
+            public void run() {
+                initState();
+            }
+        });
+        
+        // Setups callbacks that will start the service according to user preferences
+        mPollScheduler = new PollScheduler(getApplicationContext());
+        mPredictor = new TransitionPredictor(DataManager.getTransitions(this));
+        subscribeService(true);
+        
+        // Times event processing stages if configured
+        mStageStats.setEnabled(DataManager.getStageTiming(this));
+    }
+
+    /** Returns the looper of the event loop thread, starting it if needed */
+    private static synchronized Looper getEventLooper() {
+        if (sEventThread == null) {
+            sEventThread = new HandlerThread(ManagerService.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+            sEventThread.start();
+        }
+        return sEventThread.getLooper();
+    }
+    
+    /** Constructs the state machine and state data */
+    private void initState() {
+        
         if (mStateMachine == null) {
             
             // Ties to load current state and state data from saved data
@@ -87,15 +279,16 @@ public class ManagerService extends Service {
             
             // Initializes the state machine and state data from current device state
             else {
-                StateEvent cellState = CellStateManager.getCellState(this, null, mStateData);
-                StateEvent wifiState = WifiStateManager.getWifiState(this, null, mStateData);
+                DeviceSnapshot snapshot = new DeviceSnapshot(this, null);
+                StateEvent cellState = CellStateManager.getCellState(snapshot, mStateData);
+                StateEvent wifiState = WifiStateManager.getWifiState(snapshot, mStateData);
                 mStateMachine = new StateMachine(cellState, wifiState);                
             }
+            
+            // Compiles user defined rules into the state machine tables
+            mStateMachine.setRules(RuleTable.load(new File(getFilesDir(), RuleTable.FILE_NAME)), mRuleSite);
         }
-        
-        // Setups callbacks that will start the service according to user preferences
-        subscribeService(true);
-   }
+    }
 
     /** Handles service deletion */
     @Override
@@ -107,12 +300,28 @@ public class ManagerService extends Service {
         // Cleans the callback that starts the service
         subscribeService(false);
 
-        // Cleans state machine and state data 
-        mStateMachine = null;
-        mStateData = null;
+        // Clears state in the event loop once the events already queued have been processed
+        mEventHandler.post(new Runnable() {
+            
+            @Override
+            public void run() {
+                
+                // Cleans state machine and state data 
+                mStateMachine = null;
+                mStateData = null;
 
-        // Clears state and refreshes preferences UI
-        saveState();        
+                // Clears state and refreshes preferences UI
+                saveState();
+                DataManager.setTransitions(ManagerService.this, mPredictor.toByteArray());
+            }
+        });
+    }
+
+    /** Releases the association shards not in use when memory runs low */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        AssociationShards.getInstance().trim();
     }
 
     /** Configures the service to be called back according to user preferences */
@@ -121,8 +330,16 @@ public class ManagerService extends Service {
         // Setup the receiver to listen events 
         EventReceiver.activateReceiver(this, enable);
         
-        // Requests periodic events from the Event Receiver to refresh cell location
-        EventReceiver.requestPeriodicEvents(getApplicationContext(), null, DataManager.getFrequency(this)* 60000, CellStateManager.CELL_CHANGE_ACTION, null, enable);
+        // Requests events from the Event Receiver to refresh cell location at adaptive intervals
+        if (enable) {
+            mPollScheduler.start(DataManager.getFrequency(this) * 60000L, DataManager.getMaxPollInterval(this) * 60000L);
+        }
+        else {
+            mPollScheduler.stop();
+        }
+
+        // Starts or stops recording raw events if configured
+        EventRecorder.activateRecorder(getApplicationContext(), enable && DataManager.getEventRecorder(this));
 
         // Requests events from the cell change listener 
         CellStateListener.requestCellChangeEvents(getApplicationContext(), CellStateManager.CELL_CHANGE_ACTION, enable);
@@ -154,44 +371,177 @@ public class ManagerService extends Service {
         }        
     }
 
-    /** Handles events sent to the service */
+    /** 
+     * Handles events sent to the service queuing them to the event loop. Cell and wifi state changes are merged with
+     * the ones received within the coalescing window. Periodic polls are dropped if the pending batch has a cell event
+     * and queued at their own priority otherwise. Other events are queued by priority after any pending batch
+     */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         
+        mRawEvents++;
+        int window = DataManager.getCoalescingWindow(this);
+        int priority = EventQueue.getPriority(intent);
+        if (window > 0 && EventCoalescer.isMergeable(intent)) {
+            if (mCoalescer.merge(intent)) {
+                mEventHandler.sendMessageDelayed(mEventHandler.obtainMessage(MSG_COALESCED, startId, 0, null), window);
+            }
+        }
+        else if (priority == EventQueue.PRIORITY_POLL) {
+            if (mCoalescer.hasCellEvent()) {
+                mQueue.drop(intent);
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOGTAG, "ManagerService: Dropping poll event with cell event pending " + intent);
+                }
+            }
+            else {
+                queueEvent(intent, startId, priority, null);
+            }
+        }
+        else {
+            flushCoalesced(priority);
+            queueEvent(intent, startId, priority, null);
+        }
+        return START_STICKY;
+    }
+    
+    /** 
+     * Queues an event to be processed by the event loop with the given priority. The callback, if any, is run in the 
+     * event loop once the event has been processed
+     */
+    private void queueEvent(Intent intent, int startId, int priority, Runnable callback) {
+        if (mQueue.offer(intent, startId, priority, callback)) {
+            mEventHandler.obtainMessage(MSG_EVENT).sendToTarget();
+        }
+        else if (BuildConfig.DEBUG) {
+            Log.d(LOGTAG, "ManagerService: Dropping stale poll event " + intent);
+        }
+    }
+    
+    /** 
+     * Queues the pending batch of coalesced events right away with the priority of the event that flushes it, so the
+     * batch is processed before that event
+     */
+    private void flushCoalesced(int priority) {
+        Intent batch = mCoalescer.take();
+        if (batch != null) {
+            mEventHandler.removeMessages(MSG_COALESCED);
+            queueEvent(batch, 0, Math.min(priority, EventQueue.PRIORITY_ENVIRONMENT), null);
+        }
+    }
+    
+    /** Processes an event in the event loop */
+    private void processEvent(Intent intent, int startId) {
+        
+        mEvaluatedEvents++;
+        mEventAction = (intent != null) ? intent.getAction() : null;
         try {
             State initialState = mStateMachine.getCurrentState();
-            Date intentDate = new Date();
+            Date intentDate = Clock.getClock().getDate();
+            DeviceSnapshot snapshot = new DeviceSnapshot(this, intent);
             
             // Builds action plan for received intent and updates state accordingly
-            List<StateAction> actionPlan = buildPlan(intent, mStateMachine, mStateData, startId);
+            long start = mStageStats.start();
+            List<StateAction> actionPlan = buildPlan(intent, snapshot, mStateMachine, mStateData, startId);
+            mStageStats.stop(mEventAction, StageStats.BUILD_PLAN, start);
+            
+            // Adapts cell polling interval to the cell observed and wifi disconnections
+            mPollScheduler.onEvent(mStateData.getCid(), mStateData.getLac(), initialState.getWifiState() == StateEvent.CON
+                    && mStateMachine.getCurrentState().getWifiState() != StateEvent.CON);
+            
+            // Learns the cell transition and polls early if arrival to a known cell is expected
+            anticipateArrival();
+            
+            // Weights the confidence of the association of the wifi connected to current cell
+            recordSighting();
             
             // Gets explicitly requested action from the intent
             RequestedAction requestedAction = RequestedActionManager.getRequestedAction(intent);
 
             // Perform the actions determined
-            performPlan(actionPlan, requestedAction, intentDate);
+            performPlan(actionPlan, requestedAction, intentDate, snapshot);
+            
+            // Refreshes cell state on change of cell data by an ADD action and performs the resulting actions
+            if (actionPlan != null && actionPlan.contains(StateAction.ADD)) {
+                actionPlan.addAll(performPlan(validatePlan(manageStateChange(mStateMachine,
+                        CellStateManager.getCellState(snapshot, mStateData), startId), new ValidationContext(this)), null, intentDate, snapshot));
+            }
+            mDeviceQueries += snapshot.getQueries();
             
             // Saves activity record to audit trail 
+            start = mStageStats.start();
             recordActivity (initialState,  mStateMachine.getCurrentState(), actionPlan, requestedAction, intentDate, mStateData);
+            mStageStats.stop(mEventAction, StageStats.RECORD_ACTIVITY, start);
 
             // Saves current state and refreshes preferences UI
+            start = mStageStats.start();
             saveState();
+            mStageStats.stop(mEventAction, StageStats.SAVE_STATE, start);
         }
         catch (Exception e) {
             Log.e(LOGTAG, Log.getStackTraceString(e));
         }
-        finally {
-            // Releases wake lock
-            WakeLockManager.getWakeLockManager().releaseWakeLock();
+    }
+    
+    /** 
+     * Learns the transition to current cell and, when it is not a known cell, requests a poll at the time a transition
+     * to a known cell is expected if its probability reaches the threshold
+     */
+    private void anticipateArrival() {
+        
+        int threshold = DataManager.getPredictionThreshold(this);
+        int cid = mStateData.getCid();
+        int lac = mStateData.getLac();
+        if (threshold > 0 && cid > CellStateManager.CELL_UNKNOWN && lac > CellStateManager.CELL_UNKNOWN) {
+            CellIdentity cell = new CellIdentity(mStateData.getNetwork(), lac, cid);
+            long now = Clock.getClock().currentTimeMillis();
+            if (mPredictor.observe(cell, now)) {
+                if (mStateMachine.getCurrentState().getCellState() == StateEvent.OUT) {
+                    int probability = mPredictor.getProbability(cell, mKnownCells);
+                    if (probability >= threshold) {
+                        mPollScheduler.requestPoll(now + mPredictor.getMeanDwell(cell));
+                        if (BuildConfig.DEBUG) {
+                            Log.d(LOGTAG, "ManagerService: Known cell expected next with probability " + probability + "%");
+                        }
+                    }
+                }
+                
+                // Saves the model from time to time
+                if (mPredictor.getTransitions() % TRANSITIONS_SAVE_INTERVAL == 0) {
+                    DataManager.setTransitions(this, mPredictor.toByteArray());
+                }
+            }
         }
+    }
+    
+    /** 
+     * Aggregates the signal strength of current cell into the confidence of its association to the wifi connected, 
+     * once each time the wifi or the cell change
+     */
+    private void recordSighting() {
         
-        return START_STICKY;
+        String wifi = mStateData.getCurrentWifi();
+        int cid = mStateData.getCid();
+        int lac = mStateData.getLac();
+        if (mStateMachine.getCurrentState().getWifiState() == StateEvent.CON && wifi != null
+                && cid > CellStateManager.CELL_UNKNOWN && lac > CellStateManager.CELL_UNKNOWN) {
+            CellIdentity cell = new CellIdentity(mStateData.getNetwork(), lac, cid);
+            if (!cell.equals(mSightedCell) || !wifi.equals(mSightedWifi)) {
+                Set<String> wifis = AssociationShards.getInstance().getWifisByCell(this, cell);
+                if (wifis != null && wifis.contains(wifi)) {
+                    AssociationConfidence.getInstance(this).observe(this, wifi, cell, CellStateListener.getSignalLevel());
+                }
+                mSightedWifi = wifi;
+                mSightedCell = cell;
+            }
+        }
     }
     
     /** Analyzes the intent received, updates the current state and builds action plan to process it  */
-    private List<StateAction> buildPlan(Intent intent, StateMachine stateMachine, Bundle stateData, int startId) {
+    private List<StateAction> buildPlan(Intent intent, DeviceSnapshot snapshot, StateMachine stateMachine, ServiceState stateData, int startId) {
 
         List<StateAction> actionPlan = null;
+        ValidationContext validation = new ValidationContext(this);
         
         // Service is being restarted after its process has gone away            
         if (intent == null) {
@@ -216,28 +566,28 @@ public class ManagerService extends Service {
                 if (BuildConfig.DEBUG) {
                     Log.d(LOGTAG, "ManagerService(" + startId + "): Service initialized by user");
                 }
-                actionPlan = validatePlan(stateMachine.manageStateChange(StateEvent.INIT, startId));
+                actionPlan = validatePlan(manageStateChange(stateMachine, StateEvent.INIT, startId), validation);
             }
 
             // Cell change event has been received
             else if (intentAction.equals(CellStateManager.CELL_CHANGE_ACTION)) {
-                actionPlan = validatePlan(stateMachine.manageStateChange(WifiStateManager.getWifiState(this, intent, stateData), startId));
-                actionPlan.addAll(validatePlan(stateMachine.manageStateChange(CellStateManager.getCellState(this, intent, stateData), startId)));
+                actionPlan = validatePlan(manageStateChange(stateMachine, WifiStateManager.getWifiState(snapshot, stateData), startId), validation);
+                actionPlan.addAll(validatePlan(manageStateChange(stateMachine, CellStateManager.getCellState(snapshot, stateData), startId), validation));
             }
 
             // Wifi state change event has been received
             else if (intentAction.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)
                     || intentAction.equals(WifiManager.WIFI_STATE_CHANGED_ACTION)) {
-                actionPlan = validatePlan(stateMachine.manageStateChange(CellStateManager.getCellState(this, intent, stateData), startId));
-                actionPlan.addAll(validatePlan(stateMachine.manageStateChange(WifiStateManager.getWifiState(this, intent, stateData), startId)));
+                actionPlan = validatePlan(manageStateChange(stateMachine, CellStateManager.getCellState(snapshot, stateData), startId), validation);
+                actionPlan.addAll(validatePlan(manageStateChange(stateMachine, WifiStateManager.getWifiState(snapshot, stateData), startId), validation));
             }
 
             // Explicit action request event received
             else if (intentAction.startsWith(RequestedActionManager.EXPLICIT_ACTION_REQ)) {
 
                 // Refresh state and retrieve requested action from intent
-                actionPlan = validatePlan(stateMachine.manageStateChange(CellStateManager.getCellState(this, intent, stateData), startId));
-                actionPlan.add(validateAction(RequestedActionManager.getStateAction(this, intent, stateMachine.getCurrentState())));
+                actionPlan = validatePlan(manageStateChange(stateMachine, CellStateManager.getCellState(snapshot, stateData), startId), validation);
+                actionPlan.add(validateAction(RequestedActionManager.getStateAction(this, intent, stateMachine.getCurrentState()), validation));
             }
 
             // Other events are discarded
@@ -251,71 +601,62 @@ public class ManagerService extends Service {
         return (actionPlan);
     }
     
+    /** Processes an event in the state machine timing it */
+    private List<StateAction> manageStateChange(StateMachine stateMachine, StateEvent event, int startId) {
+        
+        long start = mStageStats.start();
+        List<StateAction> result = stateMachine.manageStateChange(event, startId);
+        mStageStats.stop(mEventAction, StageStats.MANAGE_STATE_CHANGE, start);
+        return result;
+    }
+    
     /** Checks whether an action is inhibited according to settings for current state */
-    private StateAction validateAction(StateAction action) {
+    private StateAction validateAction(StateAction action, ValidationContext validation) {
 
         boolean enabled = true;
         switch (action) {
 
         case ON:
-            // Validate time interval 
-            if (DataManager.getTimeIntervalEnabled(this)) {
-
-                // Checks if current hour is outside disable wifi hours interval
-                int[] beginString = DataManager.getTimeIntervalBegin(this);
-                int[] endString = DataManager.getTimeIntervalEnd(this);
-
-                if (beginString != null && beginString.length > 1 && endString != null && endString.length > 1) {
-                    int begin = beginString[0] * 60 + beginString[1];
-                    int end = endString[0] * 60 + endString[1];
-                    Date nowDate = new Date();
-                    int now = nowDate.getHours() * 60 + nowDate.getMinutes();
-
-                    if (end >= begin)
-                        enabled = (now < begin) || (now >= end);
-                    else
-                        enabled = (now < begin) && (now >= end);
-                }
-            }
+            // Checks if current hour is outside disable wifi hours interval
+            enabled = !validation.isInTimeInterval();
             
             // Validates if turning on wifi on unknown locations behavior is active
             if ((mStateMachine.getCurrentState().getCellState() == StateEvent.UNK)) {
-                enabled &= DataManager.getUnkLocationActivates(this);
+                enabled &= validation.getUnkLocationActivates();
             }
                         
         case OFF:
             // Checks if ON action is enabled for any wifi in this cell and 
             // checks if OFF action was enabled for any wifi in the last cell where status was IN
-            enabled &= CellStateManager.getActionEnabled(mStateData, action);
+            enabled &= mStateData.getActionEnabled(action);
             break;
 
         case ADD:
             // Checks if wifi is new and add wifis is enabled or 
             // wifi is existant its ADD locations preference is enabled
-            String wifi = WifiStateManager.getCurrentWifi(mStateData);
-            enabled &= (!DataManager.isExistantWifi(this, wifi) && DataManager.getAddWifis(this) || DataManager.isExistantWifi(this, wifi)
-                    && DataManager.getWifiAction(this, StateAction.ADD, wifi));
+            String wifi = mStateData.getCurrentWifi();
+            enabled &= (!validation.isExistantWifi(wifi) && validation.getAddWifis() || validation.getWifiAddAction(wifi));
                     
             // An unknow or dissabled cell is not added
-            //enabled &= DataManager.getCellEnabled(this, CellStateManager.getCid(mStateData), CellStateManager.getLac(mStateData));
-            enabled &= ((CellStateManager.getCid(mStateData) > CellStateManager.CELL_UNKNOWN)
-                    && (CellStateManager.getLac(mStateData) > CellStateManager.CELL_UNKNOWN));
+            //enabled &= DataManager.getCellEnabled(this, mStateData.getCid(), mStateData.getLac());
+            enabled &= ((mStateData.getCid() > CellStateManager.CELL_UNKNOWN)
+                    && (mStateData.getLac() > CellStateManager.CELL_UNKNOWN));
             break;
             
         case CREATE_DEFERRED_OFF:
         case CANCEL_DEFERRED_OFF:
-            enabled = (DataManager.getOffAfterDiscTimeout(this) != 0);
+            enabled = (validation.getOffAfterDiscTimeout() != 0);
             break;
         
         case DATA_OFF:
             // Turns off mobile data only if mobile data management is enabled and if wifi is new or not disabled by user
-            wifi = WifiStateManager.getCurrentWifi(mStateData);
-            enabled = (DataManager.getMobileDataManaged(this)) && (!DataManager.isExistantWifi(this, wifi) || DataManager.getWifiEnabled(this, wifi));                        
+            wifi = mStateData.getCurrentWifi();
+            enabled = validation.getMobileDataManaged() && (!validation.isExistantWifi(wifi) || validation.getWifiEnabled(wifi));                        
             break;
 
         case DATA_RESTORE:
             // Restores mobile data only if mobile data management is enabled
-            enabled = DataManager.getMobileDataManaged(this);            
+            enabled = validation.getMobileDataManaged();            
             break;
 
         default:
@@ -327,22 +668,24 @@ public class ManagerService extends Service {
     }
     
     /** Checks whether any action of the list is inhibited according to settings for current state */
-    private List<StateAction> validatePlan(List<StateAction> actions) {
+    private List<StateAction> validatePlan(List<StateAction> actions, ValidationContext validation) {
     
+        long start = mStageStats.start();
         if (actions != null) {            
             // Validates each action of the plan
             for (Iterator<StateAction> iterator = actions.iterator(); iterator.hasNext();) {                
                 // Removes invalidated actions from the plan
-                if (validateAction(iterator.next()) == StateAction.NONE) {
+                if (validateAction(iterator.next(), validation) == StateAction.NONE) {
                     iterator.remove();
                 }
             }
         }        
+        mStageStats.stop(mEventAction, StageStats.VALIDATE_PLAN, start);
         return (actions);
     }
         
     /** Performs an action of the plan */
-    private boolean performAction(StateAction action, RequestedAction requestedAction, Date date) {
+    private boolean performAction(StateAction action, RequestedAction requestedAction, Date date, DeviceSnapshot snapshot) {
         boolean result = false;        
         
         // Performs required action
@@ -350,8 +693,15 @@ public class ManagerService extends Service {
 
         // Handles enable wifi action
         case ON:
+            // Checks the wifi toggle budget
+            if (!governAction(action, date)) {
+                break;
+            }
+
             // Turns wifi on
-            WifiStateManager.setWifiState(this, StateEvent.DISC, mStateData);
+            if (WifiStateManager.setWifiState(snapshot, StateEvent.DISC, mStateData)) {
+                RadioGovernor.getInstance().recordToggle(Radio.WIFI, Clock.getClock().elapsedRealtime());
+            }
 
             // Checks if it is an explicitly requested action or if it is caused by an state change
             DescribeableElement cause = requestedAction == null ? mStateMachine.getCurrentState().getCellState() : requestedAction;
@@ -363,9 +713,15 @@ public class ManagerService extends Service {
 
         // Handles switch off wifi action
         case OFF:
+            // Checks the wifi toggle budget
+            if (!governAction(action, date)) {
+                break;
+            }
 
             // Turn wifi off
-            WifiStateManager.setWifiState(this, StateEvent.OFF, mStateData);
+            if (WifiStateManager.setWifiState(snapshot, StateEvent.OFF, mStateData)) {
+                RadioGovernor.getInstance().recordToggle(Radio.WIFI, Clock.getClock().elapsedRealtime());
+            }
             
             // Checks if it is an explicitly requested action or if it is caused by an state change
             cause = requestedAction == null ? mStateMachine.getCurrentState().getCellState(): requestedAction;
@@ -378,18 +734,22 @@ public class ManagerService extends Service {
         // Handles add wifi cell action
         case ADD:
 
-            String wifi = WifiStateManager.getCurrentWifi(mStateData);
-            int cid = CellStateManager.getCid(mStateData);
-            int lac = CellStateManager.getLac(mStateData);
+            String wifi = mStateData.getCurrentWifi();
+            int cid = mStateData.getCid();
+            int lac = mStateData.getLac();
 
+            // Merges the cells observed into the wifi location fingerprint
+            FingerprintIndex.getInstance(this).learn(this, wifi, FingerprintIndex.getCellKeys(cid, lac, snapshot.getNeighbourCells()));
+            
             // Adds the wifi cell association if it did not exist before
-            if (DataManager.addWifiCell(this, wifi, cid, lac)) {
+            if (DataManager.addWifiCell(this, wifi, cid, lac, mStateData.getNetwork())) {
+
+                // Weights the new association with the signal strength of the cell
+                AssociationConfidence.getInstance(this).observe(this, wifi, new CellIdentity(mStateData.getNetwork(), lac, cid),
+                        CellStateListener.getSignalLevel());
 
                 // Puts the notification in the notifications bar
                 NotificationManager.notifyAction(this, StateAction.ADD, mStateMachine.getCurrentState().getWifiState(), date, mStateData);
-                
-                // Refresh cell state on change of cell data by an ADD action
-                forwardEvent(this, CellStateManager.CELL_CHANGE_ACTION, null); 
                 result = true;
             }
             break;
@@ -398,7 +758,7 @@ public class ManagerService extends Service {
         case CREATE_DEFERRED_OFF:
             
             // Schedule a requested action to execute deferred off
-            Calendar calendar = Calendar.getInstance();
+            Calendar calendar = Clock.getClock().getCalendar();
             calendar.add(Calendar.SECOND, DataManager.getOffAfterDiscTimeout(this));            
             EventReceiver.requestEvent(getApplicationContext(), calendar.getTime(), 
             		RequestedActionManager.EXPLICIT_ACTION_REQ + RequestedAction.DEFERRED_OFF, 
@@ -419,9 +779,15 @@ public class ManagerService extends Service {
         // Handles mobile data on and off actions
         case DATA_OFF:        
         case DATA_RESTORE:
+            // Checks the mobile data toggle budget
+            if (!governAction(action, date)) {
+                break;
+            }
             
             // Turns off mobile data
-            MobileDataManager.setMobileDataState(getApplicationContext(), action, mStateData);            
+            if (MobileDataManager.setMobileDataState(getApplicationContext(), action, mStateData)) {
+                RadioGovernor.getInstance().recordToggle(Radio.MOBILE_DATA, Clock.getClock().elapsedRealtime());
+            }
             result = true;
             break;
         
@@ -432,15 +798,72 @@ public class ManagerService extends Service {
         return result;
     }
     
+    /** 
+     * Checks the toggle budget of the radio an action changes. If it is exhausted the action is deferred until 
+     * budget is available again or dropped according to settings. Returns true if the action can be performed now 
+     */
+    private boolean governAction(StateAction action, Date date) {
+        
+        Radio radio = Radio.getRadio(action);
+        RadioGovernor governor = RadioGovernor.getInstance();
+        governor.setBudget(DataManager.getToggleBudget(this));
+        
+        long now = Clock.getClock().elapsedRealtime();
+        boolean result = (radio == null) || governor.hasBudget(radio, now);
+        
+        if (!result) {
+            
+            // Restoring mobile data is never dropped, as it would leave the device without data connection
+            if (DataManager.getToggleBudgetPolicy(this) == RadioGovernor.Policy.DEFER || action == StateAction.DATA_RESTORE) {
+                
+                // Cancels any other retry pending for the same radio and schedules this action retry
+                for (StateAction other : StateAction.values()) {
+                    if (other != action && Radio.getRadio(other) == radio) {
+                        EventReceiver.requestEvent(getApplicationContext(), null, 
+                                RequestedActionManager.EXPLICIT_ACTION_REQ + RequestedAction.THROTTLED + other, 
+                                RequestedActionManager.createRequestedAction(RequestedAction.THROTTLED, other), false);
+                    }
+                }
+                EventReceiver.requestEvent(getApplicationContext(), new Date(date.getTime() + governor.getReleaseTime(radio, now) - now), 
+                        RequestedActionManager.EXPLICIT_ACTION_REQ + RequestedAction.THROTTLED + action, 
+                        RequestedActionManager.createRequestedAction(RequestedAction.THROTTLED, action), true);
+                governor.recordDeferred(radio);
+            }
+            else {
+                governor.recordDropped(radio);
+            }
+            
+            if (BuildConfig.DEBUG) {
+                Log.d(LOGTAG, "ManagerService: Toggle budget of " + radio + " exhausted (" + governor.getUsage(radio, now) + "/" + 
+                        governor.getBudget() + "), action " + action + " deferred: " + governor.getDeferred(radio) + 
+                        ", dropped: " + governor.getDropped(radio));
+            }
+            
+            // Records the postponed action to audit trail
+            if (DataManager.getHasDonated(this, false)) {
+                Object[] args = { mStateData.getNearbyWifis(), mStateData.getCurrentWifi(),
+                        DataManager.getOffAfterDiscTimeout(this) };
+                AuditTrailManager.getInstance(getApplicationContext()).writeRecord(
+                        new ActivityRecord(mStateMachine.getCurrentState(), action, RequestedAction.THROTTLED, date, args));
+            }
+        }
+        
+        return result;
+    }
+    
     /** Performs an action plan  */
-    private List<StateAction> performPlan(List<StateAction> actions, RequestedAction requestedAction, Date date) {
+    private List<StateAction> performPlan(List<StateAction> actions, RequestedAction requestedAction, Date date, DeviceSnapshot snapshot) {
         
         if (actions != null) {            
             // Perform each action of the plan in order
             for (Iterator<StateAction> iterator = actions.iterator(); iterator.hasNext();) {                
                 StateAction action = iterator.next();
+                long start = mStageStats.start();
+                boolean performed = performAction(action, requestedAction, date, snapshot);
+                mStageStats.stop(mEventAction, StageStats.getPerformStage(action), start);
+                
                 // Removes any action from the plan that is not executed
-                if (!performAction(action, requestedAction, date)) {
+                if (!performed) {
                     iterator.remove();
                 }
             }
@@ -450,7 +873,7 @@ public class ManagerService extends Service {
     
     /** Saves an activity record to audit trail */
     private void recordActivity(State initialState, State finalState, List<StateAction> actionPlan, RequestedAction requestedAction,
-            Date date, Bundle stateData) {
+            Date date, ServiceState stateData) {
 
         if (DataManager.getHasDonated(this, false)) {
             ActivityRecord record = null;
@@ -467,7 +890,7 @@ public class ManagerService extends Service {
 
                 // Creates an activity record. Action and requested action might be null, but there must be 
                 // an state change or an explicitly requested action
-                Object[] args = { CellStateManager.getNearbyWifis(stateData), WifiStateManager.getCurrentWifi(stateData),
+                Object[] args = { stateData.getNearbyWifis(), stateData.getCurrentWifi(),
                         DataManager.getOffAfterDiscTimeout(this) };
 
                 record = new ActivityRecord(finalState, action, requestedAction, date, args);
@@ -483,27 +906,11 @@ public class ManagerService extends Service {
     /** Saves current state */
     private void saveState () {
 
-        // Saves currentState of state machine
-        DataManager.setState(this, mStateMachine != null ? mStateMachine.getCurrentState() : null);
-                            
-        // Saves current cell state data
-        DataManager.setCurrentCell(this, CellStateManager.getCid(mStateData), CellStateManager.getLac(mStateData));
-        
-        // Saves actions enabled state data
-        DataManager.setCurrentAction(this, StateAction.ON, CellStateManager.getActionEnabled(mStateData, StateAction.ON));
-        DataManager.setCurrentAction(this, StateAction.OFF, CellStateManager.getActionEnabled(mStateData,StateAction.OFF));
-
-        // Saves current wifi state data
-        DataManager.setCurrentWifi(this, WifiStateManager.getCurrentWifi(mStateData));
-        
-        // Saves any pending mobile data action
-        DataManager.setPendingMobileDataAction(this, MobileDataManager.getPendingMobileDataAction(mStateData));
-        
-        // Saves any inflight wifi state change action
-        DataManager.setInflightWifiAction(this, WifiStateManager.getInflightWifiAction(mStateData));
+        // Saves current state of state machine and state data in a single commit
+        DataManager.setServiceState(this, mStateMachine != null ? mStateMachine.getCurrentState() : null, mStateData);
                 
-        // Refreshes preferences UI
-        Preferences.requestRefresh(this);
+        // Refreshes preferences UI from the main thread
+        mMainHandler.post(mRefreshUi);
     }
     
     /** Loads state and state data from data manager and returns if it was available */
@@ -511,45 +918,24 @@ public class ManagerService extends Service {
         
         boolean result = false;
 
-        // Initializes state data bundle
-        if (mStateData == null)
-            mStateData = new Bundle();
-        
-        // Constructs state machine already initialized to saved state
+        // Loads state data or initializes it
         StateMachine.State savedState = DataManager.getState(this);
+        ServiceState savedStateData = (savedState != null) ? DataManager.getServiceState(this) : null;
+        mStateData = (savedStateData != null) ? savedStateData : new ServiceState();
         
-        if (result = (savedState != null)) {
+        // Constructs state machine already initialized to saved state
+        if (result = (savedStateData != null)) {
             mStateMachine = new StateMachine(savedState);
-
-            // Loads current cell state data
-            int[] currentCell = DataManager.getCurrentCell(this);
-            CellStateManager.setCurrentCell(mStateData, currentCell);
-
-            // Loads current number of nearby wifis state data
-            Set<String> currentWifis = DataManager.getWifisByCell(this, currentCell[0], currentCell[1]);
-            CellStateManager.setNearbyWifis(mStateData, currentWifis != null ? currentWifis.size() : 0);
-
-            // Load actions enabled state data
-            CellStateManager.setActionEnabled(mStateData, StateAction.ON, DataManager.getCurrentAction(this, StateAction.ON));
-            CellStateManager.setActionEnabled(mStateData, StateAction.OFF, DataManager.getCurrentAction(this, StateAction.OFF));
-
-            // Loads current wifi state data
-            WifiStateManager.setCurrentWifi(mStateData, DataManager.getCurrentWifi(this));
-            
-            // Loads any pending mobile data action state data
-            MobileDataManager.setPendingMobileDataAction(mStateData, DataManager.getPendingMobileDataAction(this));            
-
-            // Loads any inflight wifi state change action
-            WifiStateManager.setInflightWifiAction(mStateData, DataManager.getInflightWifiAction(this));            
         }
         
         return result;
     }
  
-    /** Send an event to the manager service with the required action and intent */
-    public static void forwardEvent (Context context, String action, Intent intent) {
+    /** Send an event to the manager service with the required action and intent. Returns false if it was not sent */
+    public static boolean forwardEvent (Context context, String action, Intent intent) {
 
-        if (DataManager.getActivate(context)) {
+        boolean result = DataManager.getActivate(context);
+        if (result) {
             
             // Creates and populates the intent 
             if (intent == null) {
@@ -565,7 +951,63 @@ public class ManagerService extends Service {
             }
             
             // Spawns the manager service 
-            context.startService(intent);
+            result = (context.startService(intent) != null);
+        }
+        return result;
+    }
+    
+    /** Dumps current state, metrics and the state machine history, as requested by dumpsys. "reset" argument resets stage latencies */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        
+        StateMachine stateMachine = mStateMachine;
+        if (stateMachine != null) {
+            writer.println("Current state: " + stateMachine.getCurrentState());
+            writer.println("Events received: " + mRawEvents + ", evaluated: " + mEvaluatedEvents + ", coalesced: " + mCoalescer.getMerged());
+            writer.println("Device queries: " + mDeviceQueries);
+            writer.println("Radio toggles " + RadioGovernor.getInstance());
+            writer.println("Event queue " + mQueue);
+            writer.println("Cell polls " + mPollScheduler);
+            writer.println("Cell changes " + CellStateListener.getStats());
+            writer.println("Location refreshes " + LocationRefresher.getInstance());
+            writer.println("Cell transitions " + mPredictor);
+            writer.println("Association confidences " + AssociationConfidence.getInstance(this) + ", signal(%): "
+                    + CellStateListener.getSignalLevel());
+            AssociationShards.getInstance().dump(writer);
+            for (PlaceClusters.Place place : PlaceClusters.getInstance().getAllPlaces(this)) {
+                writer.println("Place " + place.id + ": wifis: " + place.wifis + ", cells: " + place.cells.size());
+            }
+            mStageStats.dump(writer);
+            stateMachine.dumpHistory(writer);
+        }
+        else {
+            writer.println("State machine not initialized");
+        }
+        
+        // Stage latencies are reset once dumped if requested
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            mStageStats.reset();
+            writer.println("Stage latencies reset");
+        }
+        
+        // Cell transition prediction is evaluated over the events recorded if requested
+        else if (args != null && args.length > 0 && "evaluate".equals(args[0])) {
+            writer.println("Prediction evaluation " + TransitionPredictor.evaluate(EventRecorder.decode(EventRecorder.getFile(this)),
+                    mKnownCells, DataManager.getPredictionThreshold(this), DataManager.getFrequency(this) * 60000L,
+                    DataManager.getMaxPollInterval(this) * 60000L));
+        }
+        
+        // Association confidence threshold is evaluated over the wifi toggles recorded if requested
+        else if (args != null && args.length > 0 && "confidence".equals(args[0])) {
+            writer.println("Confidence evaluation " + AssociationConfidence.getInstance(this).evaluate(
+                    EventRecorder.decode(EventRecorder.getFile(this)), DataManager.getConfidenceThreshold(this)));
+        }
+        
+        // Settings reads of action validation are benchmarked with the settings of current wifi if requested
+        else if (args != null && args.length > 0 && "validation".equals(args[0])) {
+            ServiceState serviceState = mStateData;
+            writer.println("Validation benchmark " + ValidationBenchmark.run(this,
+                    (serviceState != null) ? serviceState.getCurrentWifi() : null, VALIDATION_BENCHMARK_EVENTS));
         }
     }
     
@@ -575,13 +1017,69 @@ public class ManagerService extends Service {
         return new ManagerServiceBinder();
     }
     
-    /** Binder that allows to send events synchronously to the service */
+    /** Binder that allows to send events synchronously or asynchronously to the service */
     public class ManagerServiceBinder extends Binder {
         
         /** Synchronously sends an even to the service */
         public void syncForwardEvent (Context context, String action, Intent intent) {
 
-            // Creates and populates the intent 
+            // Processes the event in the event loop ahead of other queued events and returns when finished
+            final Intent event = createEvent(context, action, intent);
+            mRawEvents++;
+            if (Looper.myLooper() == mEventHandler.getLooper()) {
+                processEvent(event, 0);
+            }
+            else {
+                flushCoalesced(EventQueue.PRIORITY_USER);
+                final CountDownLatch processed = new CountDownLatch(1);
+                queueEvent(event, 0, EventQueue.PRIORITY_USER, new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        processed.countDown();
+                    }
+                });
+                
+                try {
+                    processed.await();
+                }
+                catch (InterruptedException e) {
+                    Log.e(LOGTAG, Log.getStackTraceString(e));
+                }
+            }
+        }
+        
+        /** 
+         * Asynchronously sends an event to the service. Returns right away, the event is processed in the event loop 
+         * ahead of other queued events, then the task, if any, is run in the event loop and the callback, if any, is 
+         * posted to the main thread 
+         */
+        public void submitEvent (Context context, String action, Intent intent, final Runnable task, final Runnable callback) {
+
+            Intent event = createEvent(context, action, intent);
+            mRawEvents++;
+            flushCoalesced(EventQueue.PRIORITY_USER);
+            queueEvent(event, 0, EventQueue.PRIORITY_USER, new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        if (task != null) {
+                            task.run();
+                        }
+                    }
+                    finally {
+                        if (callback != null) {
+                            mMainHandler.post(callback);
+                        }
+                    }
+                }
+            });
+        }
+        
+        /** Creates and populates the intent of an event */
+        private Intent createEvent (Context context, String action, Intent intent) {
+
             if (intent == null) {
                 intent = new Intent(context, ManagerService.class); 
             }
@@ -593,9 +1091,7 @@ public class ManagerService extends Service {
             if (action != null) {
                 intent.setAction(action);
             }
-
-            // Forwards to onStartCommand and returns when finished
-            onStartCommand(intent, 0, 0);            
-        }        
+            return intent;
+        }
     }        
 }
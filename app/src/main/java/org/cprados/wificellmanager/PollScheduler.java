@@ -0,0 +1,162 @@
+/*
+ * PollScheduler.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import java.util.Date;
+
+import org.cprados.wificellmanager.sys.CellStateManager;
+import org.cprados.wificellmanager.sys.Clock;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Schedules the periodic cell location polls. The interval between polls doubles while the cell observed stays the
+ * same, up to a maximum, and goes back to the minimum after a cell change or a wifi disconnection. Each poll is
+ * scheduled as a single alarm once the previous one has been processed.
+ */
+public class PollScheduler {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = PollScheduler.class.getPackage().getName();
+
+    /** Context used to schedule the alarms */
+    private final Context mContext;
+
+    /** Minimum and maximum interval between polls in ms */
+    private long mMinInterval;
+    private long mMaxInterval;
+
+    /** Current interval between polls in ms */
+    private long mInterval;
+
+    /** Time of next poll in ms since 1/1/1970, or 0 if polls are not scheduled */
+    private long mNextPoll;
+
+    /** Time of last poll in ms since 1/1/1970, or 0 if there was none */
+    private long mLastPoll;
+
+    /** Cell observed in last event */
+    private int mCid = CellStateManager.CELL_UNKNOWN;
+    private int mLac = CellStateManager.CELL_UNKNOWN;
+
+    /** Time of the early poll requested in ms since 1/1/1970, or 0 if there is none */
+    private long mEarlyPoll;
+
+    /** Number of early polls requested */
+    private int mEarlyPolls;
+
+    /** Number of polls processed */
+    private int mPolls;
+
+    /** Number of wake ups the fixed minimum interval would have needed in addition to the polls processed */
+    private long mSavedWakeups;
+
+    /** Creates a scheduler of polls */
+    public PollScheduler(Context context) {
+        mContext = context;
+    }
+
+    /** Starts polling right away with the given interval bounds in ms. Maximum below minimum means fixed interval */
+    public synchronized void start(long minInterval, long maxInterval) {
+        mMinInterval = Math.max(minInterval, 1);
+        mMaxInterval = Math.max(maxInterval, mMinInterval);
+        mInterval = mMinInterval;
+        schedule(Clock.getClock().currentTimeMillis());
+    }
+
+    /** Cancels next poll */
+    public synchronized void stop() {
+        EventReceiver.requestEvent(mContext, null, CellStateManager.CELL_CHANGE_ACTION, null, false);
+        mNextPoll = 0;
+    }
+
+    /**
+     * Adapts the interval to an event processed. The first event processed once a poll is due schedules the next one,
+     * lengthening the interval if the cell observed was stable, so polls merged or dropped in favor of fresher events
+     * are accounted too. A cell change or a wifi disconnection resets the interval and brings next poll forward
+     */
+    public synchronized void onEvent(int cid, int lac, boolean wifiDisconnected) {
+
+        if (mNextPoll != 0) {
+            long now = Clock.getClock().currentTimeMillis();
+            boolean cellChanged = (cid != mCid || lac != mLac);
+            boolean changed = (cellChanged || wifiDisconnected);
+            mCid = cid;
+            mLac = lac;
+
+            // Early poll requested for a change expected in previous cell no longer applies
+            if (cellChanged) {
+                mEarlyPoll = 0;
+            }
+
+            if (now >= mNextPoll) {
+                // Accounts the wake ups the minimum interval would have needed since last poll
+                if (mLastPoll != 0) {
+                    mSavedWakeups += Math.max((now - mLastPoll) / mMinInterval - 1, 0);
+                }
+                mLastPoll = now;
+                mPolls++;
+                mInterval = changed ? mMinInterval : Math.min(mInterval * 2, mMaxInterval);
+                schedule((mEarlyPoll > now && mEarlyPoll < now + mInterval) ? mEarlyPoll : now + mInterval);
+            }
+            else if (changed) {
+                mInterval = mMinInterval;
+                if (mNextPoll > now + mInterval) {
+                    schedule(now + mInterval);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests a poll at the given time, ahead of the interval, for a change expected then. It is kept until the
+     * next cell change, so the polls scheduled until then do not go past it
+     */
+    public synchronized void requestPoll(long time) {
+
+        if (mNextPoll != 0 && time > Clock.getClock().currentTimeMillis()) {
+            mEarlyPoll = time;
+            mEarlyPolls++;
+            if (time < mNextPoll) {
+                schedule(time);
+            }
+        }
+    }
+
+    /** Schedules next poll at the given time */
+    private void schedule(long time) {
+        mNextPoll = time;
+        EventReceiver.requestEvent(mContext, new Date(time), CellStateManager.CELL_CHANGE_ACTION, null, true);
+        if (BuildConfig.DEBUG) {
+            Log.d(LOGTAG, "PollScheduler: Next poll: " + new Date(time) + ", interval(ms)=" + mInterval);
+        }
+    }
+
+    /** Returns the number of wake ups saved compared with polling at the minimum interval */
+    public synchronized long getSavedWakeups() {
+        return mSavedWakeups;
+    }
+
+    /** Returns a summary of the polls */
+    @Override
+    public synchronized String toString() {
+        return "interval: " + mInterval / 60000 + " min, polls: " + mPolls + ", early: " + mEarlyPolls + ", wake ups saved: " + mSavedWakeups;
+    }
+}
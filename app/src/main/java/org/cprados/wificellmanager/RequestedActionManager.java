@@ -35,12 +35,15 @@ public class RequestedActionManager {
     /** Extra name for the action requested in and event */
     private static final String EXTRA_ACTION = RequestedActionManager.class.getName() + ".action";
     
+    /** Extra name for the state action postponed by a throttled action request */
+    private static final String EXTRA_STATE_ACTION = RequestedActionManager.class.getName() + ".state_action";
+    
     /** Initiator of actions of the intents sent to the service for explicit action requests*/
     public static final String EXPLICIT_ACTION_REQ = ManagerService.class.getName() + ".explicit_action_req_";
     
     /** Action requests handled by the Manager Service */
     public enum RequestedAction implements DescribeableElement {
-        SCHEDULED_OFF, SCHEDULED_ON, DEFERRED_OFF;
+        SCHEDULED_OFF, SCHEDULED_ON, DEFERRED_OFF, THROTTLED;
     
         /** Returns the requested action description */
         @Override
@@ -58,6 +61,9 @@ public class RequestedActionManager {
             case DEFERRED_OFF:
                 description = res.getString(R.string.requested_action_deferred_off,args[2]);
                 break;
+            case THROTTLED:
+                description = res.getString(R.string.requested_action_throttled);
+                break;
             }
             
             return description;
@@ -101,6 +107,20 @@ public class RequestedActionManager {
                         result = StateAction.ON;
                     }
                 }
+                
+                // Throttled action retry event received
+                else if (extraAction.equals(RequestedAction.THROTTLED.toString())) {
+                    
+                    // Action is the postponed one if it still changes current wifi state
+                    StateAction stateAction = getThrottledAction(intent);
+                    StateEvent wifiState = currentState.getWifiState();
+                    if ((stateAction == StateAction.ON && wifiState == StateEvent.OFF) ||
+                            (stateAction == StateAction.OFF && wifiState != StateEvent.OFF) ||
+                            (stateAction == StateAction.DATA_OFF && wifiState == StateEvent.CON) ||
+                            (stateAction == StateAction.DATA_RESTORE && wifiState != StateEvent.CON)) {
+                        result = stateAction;
+                    }
+                }
             }
         }
         
@@ -121,6 +141,35 @@ public class RequestedActionManager {
         return (result);        
     }
     
+    /** Builds an explicit requested event intent to retry a postponed state action */
+    public static Intent createRequestedAction (RequestedAction requestedAction, StateAction stateAction) {
+
+        Intent result = createRequestedAction(requestedAction);
+        
+        if (result != null && stateAction != null) {
+            result.putExtra(EXTRA_STATE_ACTION, stateAction.toString());
+        }
+        
+        return (result);        
+    }
+    
+    /** Returns the state action postponed by a throttled action request intent */
+    private static StateAction getThrottledAction(Intent intent) {
+
+        StateAction result = StateAction.NONE;
+        String extraStateAction = intent.getStringExtra(EXTRA_STATE_ACTION);
+        if (extraStateAction != null) {
+            try {
+                result = StateAction.valueOf(extraStateAction);
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        
+        return result;
+    }
+    
     /** Return the explicit requested action from an intent */
     public static RequestedAction getRequestedAction(Intent intent) {
 
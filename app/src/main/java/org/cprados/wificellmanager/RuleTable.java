@@ -0,0 +1,511 @@
+/*
+ * RuleTable.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.cprados.wificellmanager.StateMachine.State;
+import org.cprados.wificellmanager.StateMachine.StateAction;
+import org.cprados.wificellmanager.StateMachine.StateEvent;
+import org.cprados.wificellmanager.sys.CellIdentity;
+
+import android.util.Log;
+
+/**
+ * Table of the actions to be performed for each event received in each state, compiled from the built-in state
+ * machine rules plus user-defined rules loaded from a local file. Each line of the file is a rule made of
+ * whitespace separated key=value fields:
+ *
+ * <pre>
+ * [state=STATE|*] [event=EVENT|*] [days=ALL|WEEKDAYS|WEEKENDS] [cell=CID_LAC[_NETWORK] | wifi="NAME"] add|remove=ACTION[,ACTION...]
+ * </pre>
+ *
+ * For instance <code>cell=1234_56 remove=OFF</code> never turns wifi off in a given cell, and
+ * <code>event=UNK days=WEEKENDS remove=ON</code> turns wifi on in unknown locations only on weekdays. Rules
+ * without site apply everywhere, and rules with a site override them in that site, wifi rules after cell rules.
+ * The file is rejected if any cell, wifi or pair of both ends up with conflicting actions. Cells are identified as
+ * in the cell preferences keys, so the packed network is required for cells whose network is known. Looking up the
+ * actions of a transition costs the same regardless of the number of rules.
+ */
+public class RuleTable {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = RuleTable.class.getPackage().getName();
+
+    /** Rules file name */
+    public static final String FILE_NAME = RuleTable.class.getName() + ".rules";
+
+    /** Day types rules can be restricted to */
+    public static final int WEEKDAY = 0;
+    public static final int WEEKEND = 1;
+    private static final int NUM_DAYS = 2;
+
+    /** Cached enumerated values */
+    private static final State[] STATES = State.values();
+    private static final StateEvent[] EVENTS = StateEvent.values();
+    private static final StateAction[] ACTIONS = StateAction.values();
+
+    /** Size of a table of actions per state and event */
+    private static final int TABLE_SIZE = STATES.length * EVENTS.length;
+
+    /** Pairs of actions that cannot be performed on the same transition */
+    private static final int[] CONFLICTING_ACTIONS = {
+        toMask(StateAction.ON) | toMask(StateAction.OFF),
+        toMask(StateAction.DATA_OFF) | toMask(StateAction.DATA_RESTORE),
+        toMask(StateAction.CREATE_DEFERRED_OFF) | toMask(StateAction.CANCEL_DEFERRED_OFF) };
+
+    /** Rule fields */
+    private static final String FIELD_STATE = "state";
+    private static final String FIELD_EVENT = "event";
+    private static final String FIELD_DAYS = "days";
+    private static final String FIELD_CELL = "cell";
+    private static final String FIELD_WIFI = "wifi";
+    private static final String FIELD_ADD = "add";
+    private static final String FIELD_REMOVE = "remove";
+
+    /** Rule field values */
+    private static final String VALUE_ANY = "*";
+    private static final String VALUE_ALL = "ALL";
+    private static final String VALUE_WEEKDAYS = "WEEKDAYS";
+    private static final String VALUE_WEEKENDS = "WEEKENDS";
+    private static final String VALUE_SEPARATOR = ",";
+
+    /** Comment initiator */
+    private static final String COMMENT = "#";
+
+    /** Table with only the built-in rules */
+    public static final RuleTable DEFAULT = new RuleTable();
+
+    /** Actions of each transition for each day type: index is (day * states + state) * events + event */
+    private final int[] mActions;
+
+    /** Actions added and removed in specific cells */
+    private final Map<String, SiteRules> mCellRules;
+
+    /** Actions added and removed when connected to specific wifis */
+    private final Map<String, SiteRules> mWifiRules;
+
+    /** Provides the site and day type a transition is evaluated at */
+    public interface Site {
+
+        /** Returns WEEKDAY or WEEKEND */
+        public int getDay();
+
+        /** Returns current cell key or null if unknown */
+        public String getCellKey();
+
+        /** Returns current wifi or null if not connected */
+        public String getWifi();
+    }
+
+    /** Actions added and removed by the rules of a site */
+    private static class SiteRules {
+
+        /** Actions added per day type, state and event */
+        private final int[] mAdd = new int[NUM_DAYS * TABLE_SIZE];
+
+        /** Actions removed per day type, state and event */
+        private final int[] mRemove = new int[NUM_DAYS * TABLE_SIZE];
+    }
+
+    /** A parsed rule */
+    private static class Rule {
+
+        /** Line of the rules file the rule comes from */
+        private int mLine;
+
+        /** States the rule applies to, as a bitmask of ordinals */
+        private int mStates = (1 << STATES.length) - 1;
+
+        /** Events the rule applies to, as a bitmask of ordinals */
+        private int mEvents = (1 << EVENTS.length) - 1;
+
+        /** Day types the rule applies to, as a bitmask */
+        private int mDays = (1 << NUM_DAYS) - 1;
+
+        /** Cell key the rule applies to or null */
+        private String mCell;
+
+        /** Wifi the rule applies to or null */
+        private String mWifi;
+
+        /** Actions added */
+        private int mAdd;
+
+        /** Actions removed */
+        private int mRemove;
+    }
+
+    /** Creates a table with only the built-in rules */
+    private RuleTable() {
+        mActions = getDefaultActions();
+        mCellRules = new HashMap<String, SiteRules>();
+        mWifiRules = new HashMap<String, SiteRules>();
+    }
+
+    /** Creates a table from its compiled parts */
+    private RuleTable(int[] actions, Map<String, SiteRules> cellRules, Map<String, SiteRules> wifiRules) {
+        mActions = actions;
+        mCellRules = cellRules;
+        mWifiRules = wifiRules;
+    }
+
+    /** Returns the actions for an event received in a state at a site, as a bitmask of action ordinals */
+    public int getActions(State state, StateEvent event, Site site) {
+
+        int index = ((site != null) ? site.getDay() * TABLE_SIZE : 0) + state.ordinal() * EVENTS.length + event.ordinal();
+        int result = mActions[index];
+
+        if (site != null) {
+            // Applies the rules of the current cell and then those of the current wifi
+            String cell = mCellRules.isEmpty() ? null : site.getCellKey();
+            SiteRules rules = (cell != null) ? mCellRules.get(cell) : null;
+            if (rules != null) {
+                result = (result | rules.mAdd[index]) & ~rules.mRemove[index];
+            }
+            String wifi = mWifiRules.isEmpty() ? null : site.getWifi();
+            rules = (wifi != null) ? mWifiRules.get(wifi) : null;
+            if (rules != null) {
+                result = (result | rules.mAdd[index]) & ~rules.mRemove[index];
+            }
+        }
+
+        return result;
+    }
+
+    /** Returns the built-in actions table for all day types */
+    private static int[] getDefaultActions() {
+
+        int[] result = new int[NUM_DAYS * TABLE_SIZE];
+        for (State state : STATES) {
+            for (StateEvent event : EVENTS) {
+                int actions = StateMachine.getDefaultActions(state, event);
+                for (int day = 0; day < NUM_DAYS; day++) {
+                    result[day * TABLE_SIZE + state.ordinal() * EVENTS.length + event.ordinal()] = actions;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the bitmask of an action */
+    public static int toMask(StateAction action) {
+        return (action != null && action != StateAction.NONE) ? 1 << action.ordinal() : 0;
+    }
+
+    /** Adds the actions of a bitmask to a list in the order they have to be performed */
+    public static List<StateAction> toActions(int mask, List<StateAction> actions) {
+        for (int i = 0; mask != 0 && i < ACTIONS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                actions.add(ACTIONS[i]);
+                mask &= ~(1 << i);
+            }
+        }
+        return actions;
+    }
+
+    /** Returns the day type of a date */
+    public static int getDay(Calendar calendar) {
+        int day = calendar.get(Calendar.DAY_OF_WEEK);
+        return (day == Calendar.SATURDAY || day == Calendar.SUNDAY) ? WEEKEND : WEEKDAY;
+    }
+
+    /** Returns the key rules use to identify a cell, qualified with its network as the cell preferences keys */
+    public static String getCellKey(int cid, int lac, int network) {
+        return DataManager.getCellTag(cid, lac, network);
+    }
+
+    /** Loads and compiles a rules file. Returns the default table if there is no file or it is not valid */
+    public static RuleTable load(File file) {
+
+        RuleTable result = DEFAULT;
+        if (file != null && file.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+                result = compile(lines);
+
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOGTAG, "RuleTable: Rules loaded from " + file + ": " + result.mCellRules.size() + " cells, "
+                            + result.mWifiRules.size() + " wifis");
+                }
+            }
+            catch (IOException e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(LOGTAG, "RuleTable: Rules file rejected: " + e.getMessage());
+            }
+            finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                }
+                catch (IOException e) {
+                    Log.e(LOGTAG, Log.getStackTraceString(e));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Compiles the lines of a rules file. Throws IllegalArgumentException if a rule is not valid or conflicts with others */
+    public static RuleTable compile(List<String> lines) {
+
+        // Parses the rules
+        List<Rule> rules = new ArrayList<Rule>();
+        int number = 0;
+        for (String line : lines) {
+            number++;
+            Rule rule = parseRule(line, number);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+
+        // Applies the rules without site to the built-in table
+        int[] actions = getDefaultActions();
+        SiteRules global = new SiteRules();
+        for (Rule rule : rules) {
+            if (rule.mCell == null && rule.mWifi == null) {
+                applyRule(rule, global);
+            }
+        }
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = (actions[i] | global.mAdd[i]) & ~global.mRemove[i];
+        }
+        validateActions(actions, null, null, "");
+
+        // Groups the rules with site by cell or wifi
+        Map<String, SiteRules> cellRules = new HashMap<String, SiteRules>();
+        Map<String, SiteRules> wifiRules = new HashMap<String, SiteRules>();
+        for (Rule rule : rules) {
+            Map<String, SiteRules> sites = (rule.mCell != null) ? cellRules : (rule.mWifi != null) ? wifiRules : null;
+            if (sites != null) {
+                String key = (rule.mCell != null) ? rule.mCell : rule.mWifi;
+                SiteRules site = sites.get(key);
+                if (site == null) {
+                    sites.put(key, site = new SiteRules());
+                }
+                applyRule(rule, site);
+            }
+        }
+        for (Iterator<Map.Entry<String, SiteRules>> iterator = cellRules.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, SiteRules> entry = iterator.next();
+            validateActions(actions, entry.getValue(), null, " in cell " + entry.getKey());
+        }
+        for (Iterator<Map.Entry<String, SiteRules>> iterator = wifiRules.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, SiteRules> entry = iterator.next();
+            validateActions(actions, null, entry.getValue(), " in wifi " + entry.getKey());
+        }
+
+        // Cell and wifi rules apply together when connected to a wifi in a cell, so every pair is checked as well
+        for (Map.Entry<String, SiteRules> cell : cellRules.entrySet()) {
+            for (Map.Entry<String, SiteRules> wifi : wifiRules.entrySet()) {
+                validateActions(actions, cell.getValue(), wifi.getValue(),
+                        " in cell " + cell.getKey() + " with wifi " + wifi.getKey());
+            }
+        }
+
+        return new RuleTable(actions, cellRules, wifiRules);
+    }
+
+    /** Adds the actions added and removed by a rule to a site, rejecting it if it contradicts previous rules */
+    private static void applyRule(Rule rule, SiteRules site) {
+
+        for (int day = 0; day < NUM_DAYS; day++) {
+            for (int state = 0; state < STATES.length; state++) {
+                for (int event = 0; event < EVENTS.length; event++) {
+                    if ((rule.mDays & (1 << day)) != 0 && (rule.mStates & (1 << state)) != 0 && (rule.mEvents & (1 << event)) != 0) {
+                        int index = day * TABLE_SIZE + state * EVENTS.length + event;
+                        if ((site.mAdd[index] & rule.mRemove) != 0 || (site.mRemove[index] & rule.mAdd) != 0) {
+                            throw new IllegalArgumentException("Line " + rule.mLine + ": removes an action another rule adds or viceversa ("
+                                    + STATES[state] + ", " + EVENTS[event] + ")");
+                        }
+                        site.mAdd[index] |= rule.mAdd;
+                        site.mRemove[index] |= rule.mRemove;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Checks that no transition ends up with conflicting actions applying the rules of a cell and then those of a wifi */
+    private static void validateActions(int[] actions, SiteRules cell, SiteRules wifi, String where) {
+
+        for (int i = 0; i < actions.length; i++) {
+            int result = (cell != null) ? (actions[i] | cell.mAdd[i]) & ~cell.mRemove[i] : actions[i];
+            result = (wifi != null) ? (result | wifi.mAdd[i]) & ~wifi.mRemove[i] : result;
+            for (int conflict : CONFLICTING_ACTIONS) {
+                if ((result & conflict) == conflict) {
+                    int index = i % TABLE_SIZE;
+                    throw new IllegalArgumentException("Conflicting actions " + toActions(conflict, new ArrayList<StateAction>())
+                            + " on " + STATES[index / EVENTS.length] + ", " + EVENTS[index % EVENTS.length] + where);
+                }
+            }
+        }
+    }
+
+    /** Parses a rule from a line of the rules file. Returns null for empty and comment lines */
+    private static Rule parseRule(String line, int number) {
+
+        Rule result = null;
+        List<String> fields = tokenize(line, number);
+
+        if (!fields.isEmpty()) {
+            result = new Rule();
+            result.mLine = number;
+
+            for (String field : fields) {
+                int separator = field.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Line " + number + ": field without value: " + field);
+                }
+                String name = field.substring(0, separator);
+                String value = unquote(field.substring(separator + 1));
+
+                if (name.equals(FIELD_STATE)) {
+                    result.mStates = value.equals(VALUE_ANY) ? result.mStates : 1 << parseEnum(State.class, value, number).ordinal();
+                }
+                else if (name.equals(FIELD_EVENT)) {
+                    result.mEvents = value.equals(VALUE_ANY) ? result.mEvents : 1 << parseEnum(StateEvent.class, value, number).ordinal();
+                }
+                else if (name.equals(FIELD_DAYS)) {
+                    if (value.equals(VALUE_WEEKDAYS)) {
+                        result.mDays = 1 << WEEKDAY;
+                    }
+                    else if (value.equals(VALUE_WEEKENDS)) {
+                        result.mDays = 1 << WEEKEND;
+                    }
+                    else if (!value.equals(VALUE_ALL)) {
+                        throw new IllegalArgumentException("Line " + number + ": unknown days: " + value);
+                    }
+                }
+                else if (name.equals(FIELD_CELL)) {
+                    String[] parts = value.split(DataManager.KEY_SEPARATOR);
+                    try {
+                        result.mCell = getCellKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                                (parts.length > 2) ? Integer.parseInt(parts[2]) : CellIdentity.NETWORK_UNKNOWN);
+                    }
+                    catch (Exception e) {
+                        throw new IllegalArgumentException("Line " + number + ": cell must be CID" + DataManager.KEY_SEPARATOR + "LAC["
+                                + DataManager.KEY_SEPARATOR + "NETWORK]: " + value);
+                    }
+                }
+                else if (name.equals(FIELD_WIFI)) {
+                    result.mWifi = value;
+                }
+                else if (name.equals(FIELD_ADD) || name.equals(FIELD_REMOVE)) {
+                    int actions = 0;
+                    for (String action : value.split(VALUE_SEPARATOR)) {
+                        actions |= toMask(parseEnum(StateAction.class, action.trim(), number));
+                    }
+                    if (name.equals(FIELD_ADD)) {
+                        result.mAdd |= actions;
+                    }
+                    else {
+                        result.mRemove |= actions;
+                    }
+                }
+                else {
+                    throw new IllegalArgumentException("Line " + number + ": unknown field: " + name);
+                }
+            }
+
+            // Validates the rule as a whole
+            if (result.mCell != null && result.mWifi != null) {
+                throw new IllegalArgumentException("Line " + number + ": a rule cannot have both cell and wifi");
+            }
+            if (result.mAdd == 0 && result.mRemove == 0) {
+                throw new IllegalArgumentException("Line " + number + ": rule without actions");
+            }
+            if ((result.mAdd & result.mRemove) != 0) {
+                throw new IllegalArgumentException("Line " + number + ": rule adds and removes the same action");
+            }
+        }
+
+        return result;
+    }
+
+    /** Parses an enumerated value of a rule */
+    private static <T extends Enum<T>> T parseEnum(Class<T> type, String value, int number) {
+        try {
+            return Enum.valueOf(type, value);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Line " + number + ": unknown " + type.getSimpleName() + ": " + value);
+        }
+    }
+
+    /** Splits a line in whitespace separated fields, keeping whitespace inside double quotes and ignoring comments */
+    private static List<String> tokenize(String line, int number) {
+
+        List<String> result = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                field.append(c);
+            }
+            else if (!quoted && line.startsWith(COMMENT, i)) {
+                break;
+            }
+            else if (!quoted && Character.isWhitespace(c)) {
+                if (field.length() > 0) {
+                    result.add(field.toString());
+                    field.setLength(0);
+                }
+            }
+            else {
+                field.append(c);
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("Line " + number + ": unterminated quotes");
+        }
+        if (field.length() > 0) {
+            result.add(field.toString());
+        }
+        return result;
+    }
+
+    /** Removes enclosing double quotes from a value */
+    private static String unquote(String value) {
+        return (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) ? value.substring(1, value.length() - 1) : value;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * StageStats.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cprados.wificellmanager.StateMachine.StateAction;
+
+/**
+ * Latency histograms of the stages of the manager service event processing, by intent action. Histograms have fixed
+ * power of two buckets updated without locks, so timings can be recorded from the event loop while they are dumped.
+ */
+public class StageStats {
+
+    /** Stage names */
+    public static final String BUILD_PLAN = "buildPlan";
+    public static final String MANAGE_STATE_CHANGE = "manageStateChange";
+    public static final String VALIDATE_PLAN = "validatePlan";
+    public static final String RECORD_ACTIVITY = "recordActivity";
+    public static final String SAVE_STATE = "saveState";
+
+    /** Stage names of the actions of performPlan by action ordinal */
+    private static final String[] PERFORM_STAGES = new String[StateAction.values().length];
+    static {
+        for (StateAction action : StateAction.values()) {
+            PERFORM_STAGES[action.ordinal()] = "performPlan." + action;
+        }
+    }
+
+    /** Number of buckets. Bucket i holds durations from 2^i to 2^(i+1) ns, the last one any longer duration */
+    private static final int BUCKETS = 40;
+
+    /** Percentiles read out */
+    private static final int[] PERCENTILES = { 50, 95, 99 };
+
+    /** Histograms by intent action and stage */
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLongArray>> mHistograms =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLongArray>>();
+
+    /** Whether timings are recorded */
+    private volatile boolean mEnabled;
+
+    /** Returns the stage name of an action performed */
+    public static String getPerformStage(StateAction action) {
+        return PERFORM_STAGES[action.ordinal()];
+    }
+
+    /** Enables or disables recording timings */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /** Returns the start time of a stage in ns, or 0 if timings are not being recorded */
+    public long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /** Records the duration of a stage started at the given time, unless it was started with timings disabled */
+    public void stop(String action, String stage, long start) {
+
+        if (start != 0) {
+            long duration = System.nanoTime() - start;
+            AtomicLongArray histogram = getHistogram(String.valueOf(action), stage);
+            histogram.incrementAndGet(getBucket(duration));
+        }
+    }
+
+    /** Returns the histogram of an action and stage, creating it if needed */
+    private AtomicLongArray getHistogram(String action, String stage) {
+
+        ConcurrentMap<String, AtomicLongArray> stages = mHistograms.get(action);
+        if (stages == null) {
+            ConcurrentMap<String, AtomicLongArray> created = new ConcurrentHashMap<String, AtomicLongArray>();
+            stages = mHistograms.putIfAbsent(action, created);
+            if (stages == null) {
+                stages = created;
+            }
+        }
+
+        AtomicLongArray result = stages.get(stage);
+        if (result == null) {
+            AtomicLongArray created = new AtomicLongArray(BUCKETS);
+            result = stages.putIfAbsent(stage, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the bucket of a duration in ns */
+    private static int getBucket(long duration) {
+        int result = 63 - Long.numberOfLeadingZeros(Math.max(duration, 1));
+        return Math.min(result, BUCKETS - 1);
+    }
+
+    /** Returns the upper bound in ns of the bucket where the given percentile of a histogram falls */
+    private static long getPercentile(long[] counts, long total, int percentile) {
+
+        long rank = (total * percentile + 99) / 100;
+        long accumulated = 0;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && (accumulated += counts[bucket]) < rank) {
+            bucket++;
+        }
+        return 1L << (bucket + 1);
+    }
+
+    /** Discards the timings recorded */
+    public void reset() {
+        mHistograms.clear();
+    }
+
+    /** Prints the count and p50, p95 and p99 latencies in us of each action and stage */
+    public void dump(PrintWriter writer) {
+
+        writer.println("Stage latencies (us)" + (mEnabled ? "" : ", disabled") + ":");
+        for (Map.Entry<String, ConcurrentMap<String, AtomicLongArray>> action : mHistograms.entrySet()) {
+            writer.println("  " + action.getKey());
+            for (Map.Entry<String, AtomicLongArray> stage : action.getValue().entrySet()) {
+
+                // Takes a copy of the buckets, that might still be updated
+                long[] counts = new long[BUCKETS];
+                long total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    total += counts[i] = stage.getValue().get(i);
+                }
+
+                StringBuilder line = new StringBuilder("    ").append(stage.getKey()).append(": ").append(total);
+                for (int percentile : PERCENTILES) {
+                    line.append(", p").append(percentile).append(" ")
+                            .append(getPercentile(counts, total, percentile) / 1000.0);
+                }
+                writer.println(line);
+            }
+        }
+    }
+}
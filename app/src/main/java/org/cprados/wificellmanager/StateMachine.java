@@ -18,9 +18,14 @@
 
 package org.cprados.wificellmanager;
 
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
+import org.cprados.wificellmanager.sys.Clock;
 import org.cprados.wificellmanager.ui.DescribeableElement;
 
 import android.content.res.Resources;
@@ -211,6 +216,29 @@ public class StateMachine {
         }
     };
         
+    /** Precomputed state transitions: index is state * events + event */
+    private static final State[] TRANSITIONS;
+    
+    static {
+        State[] states = State.values();
+        StateEvent[] events = StateEvent.values();
+        TRANSITIONS = new State[states.length * events.length];
+        for (State state : states) {
+            for (StateEvent event : events) {
+                TRANSITIONS[state.ordinal() * events.length + event.ordinal()] = state.transition(event);
+            }
+        }
+    }
+    
+    /** Number of possible state events */
+    private static final int NUM_EVENTS = StateEvent.values().length;
+    
+    /** Number of transitions kept in the history */
+    private static final int HISTORY_SIZE = 256;
+    
+    /** Date format of the history dump */
+    private static final String HISTORY_DATEFORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+    
     /** List of actions to be done next determined in last state transitions */
     private List<StateAction> mNextActions = null;
 
@@ -219,6 +247,25 @@ public class StateMachine {
     
     /** Last event processed */
     private StateEvent lastEvent = null;
+    
+    /** Compiled rules that determine the actions of each transition */
+    private RuleTable mRules = RuleTable.DEFAULT;
+    
+    /** Site and day type rules are evaluated at */
+    private RuleTable.Site mSite = null;
+    
+    /** History of transitions: events, previous and next states ordinals, actions bitmasks and times */
+    private final byte[] mHistoryEvents = new byte[HISTORY_SIZE];
+    private final byte[] mHistoryPrevStates = new byte[HISTORY_SIZE];
+    private final byte[] mHistoryNextStates = new byte[HISTORY_SIZE];
+    private final int[] mHistoryActions = new int[HISTORY_SIZE];
+    private final long[] mHistoryTimes = new long[HISTORY_SIZE];
+    
+    /** Number of transitions whose recording has started */
+    private volatile int mHistoryStarted = 0;
+    
+    /** Number of transitions recorded */
+    private volatile int mHistoryCount = 0;
 
     /** Constructs the state machine initialized to the specified states */
     public StateMachine(StateEvent cellState, StateEvent wifiState) {
@@ -239,14 +286,16 @@ public class StateMachine {
     /** Manages state changes and returns corresponding actions */
     public List<StateAction> manageStateChange(StateEvent stateEvent, int startId) {
 
-        State nextState = mCurrentState.transition(stateEvent);
+        State nextState = mCurrentState;
         List<StateAction> nextActions = new LinkedList<StateAction>();
 
-        // General state changes actions
-        manageGeneralStateChange (stateEvent, nextActions);
-
-        // Deferred off handling based just on Wifi state changes
-        manageWifiStateChange (stateEvent, nextActions);
+        // Looks up next state and its actions in the precomputed tables
+        if (stateEvent != null) {
+            nextState = TRANSITIONS[mCurrentState.ordinal() * NUM_EVENTS + stateEvent.ordinal()];
+            int actions = mRules.getActions(mCurrentState, stateEvent, mSite);
+            RuleTable.toActions(actions, nextActions);
+            recordTransition(stateEvent, mCurrentState, nextState, actions);
+        }
         
         if (BuildConfig.DEBUG) {
             Log.d(LOGTAG, "StateMachine(" + startId + "): Event: " + stateEvent + 
@@ -258,11 +307,80 @@ public class StateMachine {
         return (mNextActions = nextActions);
     }
     
+    /** Records a transition in the history ring, overwriting the oldest one, without allocating */
+    private void recordTransition(StateEvent stateEvent, State prevState, State nextState, int actions) {
+        
+        int count = mHistoryCount;
+        int index = count % HISTORY_SIZE;
+        
+        // Readers discard entries whose recording started after they began reading
+        mHistoryStarted = count + 1;
+        mHistoryEvents[index] = (byte) stateEvent.ordinal();
+        mHistoryPrevStates[index] = (byte) prevState.ordinal();
+        mHistoryNextStates[index] = (byte) nextState.ordinal();
+        mHistoryActions[index] = actions;
+        mHistoryTimes[index] = Clock.getClock().currentTimeMillis();
+        mHistoryCount = count + 1;
+    }
+    
+    /** Writes the history of transitions, oldest first. Can be called from any thread while transitions are recorded */
+    public void dumpHistory(PrintWriter writer) {
+        
+        // Copies the recorded entries
+        int count = mHistoryCount;
+        int first = Math.max(0, count - HISTORY_SIZE);
+        int size = count - first;
+        byte[] events = new byte[size];
+        byte[] prevStates = new byte[size];
+        byte[] nextStates = new byte[size];
+        int[] actions = new int[size];
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % HISTORY_SIZE;
+            events[i] = mHistoryEvents[index];
+            prevStates[i] = mHistoryPrevStates[index];
+            nextStates[i] = mHistoryNextStates[index];
+            actions[i] = mHistoryActions[index];
+            times[i] = mHistoryTimes[index];
+        }
+        
+        // Skips the entries overwritten while copying
+        int valid = Math.max(first, mHistoryStarted - HISTORY_SIZE) - first;
+
+        StateEvent[] eventValues = StateEvent.values();
+        State[] stateValues = State.values();
+        SimpleDateFormat dateFormat = new SimpleDateFormat(HISTORY_DATEFORMAT, Locale.US);
+        writer.println("State machine history (" + (size - valid) + " of " + count + " transitions):");
+        for (int i = valid; i < size; i++) {
+            writer.println("  " + dateFormat.format(new Date(times[i])) + " " + eventValues[events[i]] + ": " + 
+                    stateValues[prevStates[i]] + "-->" + stateValues[nextStates[i]] + " " + 
+                    RuleTable.toActions(actions[i], new LinkedList<StateAction>()));
+        }
+    }
+    
+    /** Returns the actions of the built-in rules for an event received in a state, as a bitmask of action ordinals */
+    static int getDefaultActions(State state, StateEvent stateEvent) {
+        
+        List<StateAction> actions = new LinkedList<StateAction>();
+
+        // General state changes actions
+        manageGeneralStateChange (state, stateEvent, actions);
+
+        // Deferred off handling based just on Wifi state changes
+        manageWifiStateChange (state, stateEvent, actions);
+        
+        int result = 0;
+        for (StateAction action : actions) {
+            result |= RuleTable.toMask(action);
+        }
+        return result;
+    }
+    
     /** Manages cell & wifi state changes */
-    private List<StateAction> manageGeneralStateChange(StateEvent stateEvent, List<StateAction> nextActions) {
+    private static List<StateAction> manageGeneralStateChange(State currentState, StateEvent stateEvent, List<StateAction> nextActions) {
 
         // General state changes actions
-        switch (mCurrentState) {
+        switch (currentState) {
 
         case IN_CON:
             if (stateEvent == StateEvent.OUT) {
@@ -343,10 +461,10 @@ public class StateMachine {
     }
 
     /** Manages changes based just on Wifi state */
-    private List<StateAction> manageWifiStateChange (StateEvent stateEvent, List<StateAction> nextActions) {
+    private static List<StateAction> manageWifiStateChange (State currentState, StateEvent stateEvent, List<StateAction> nextActions) {
 
         // Deferred off handling based just on Wifi state changes
-        switch (mCurrentState.mWifiState) {
+        switch (currentState.mWifiState) {
             case CON:
                 if (stateEvent == StateEvent.DISC) {
                     nextActions.add(StateAction.CREATE_DEFERRED_OFF);
@@ -386,6 +504,12 @@ public class StateMachine {
         return (nextActions);
     }
         
+    /** Sets the compiled rules that determine the actions of each transition and the site they are evaluated at */
+    public void setRules(RuleTable rules, RuleTable.Site site) {
+        mRules = (rules != null) ? rules : RuleTable.DEFAULT;
+        mSite = site;
+    }
+    
     /** Returns next action to be done depending on last state change */
     public List<StateAction> getNextActions() {
         return mNextActions;
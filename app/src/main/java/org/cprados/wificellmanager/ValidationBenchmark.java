@@ -0,0 +1,137 @@
+/*
+ * ValidationBenchmark.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import org.cprados.wificellmanager.StateMachine.StateAction;
+
+import android.content.Context;
+
+/**
+ * Benchmark of the settings reads of action validation, run on the device from the service dump. It times the reads
+ * validation did for each action, before settings were read once per event, against a validation context built once
+ * per event and queried for the same actions. The decisions made from the settings are the same in both cases.
+ */
+public class ValidationBenchmark {
+
+    /** Actions validated in each event */
+    private static final StateAction[] ACTIONS = { StateAction.ADD, StateAction.ON, StateAction.OFF,
+        StateAction.CREATE_DEFERRED_OFF, StateAction.CANCEL_DEFERRED_OFF, StateAction.DATA_OFF, StateAction.DATA_RESTORE };
+
+    /** Result of the settings read, kept so reads are not optimized away */
+    private static volatile boolean sSink;
+
+    /** Times the validation of the given number of events with the settings of a wifi. Returns a summary */
+    public static String run(Context context, String wifi, int events) {
+
+        // Warms up preferences so both cases read them from memory
+        readPerAction(context, wifi);
+        readPerEvent(context, wifi);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            readPerAction(context, wifi);
+        }
+        long perAction = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            readPerEvent(context, wifi);
+        }
+        long perEvent = System.nanoTime() - start;
+
+        return "events: " + events + ", settings read per action: " + perAction / events / 1000 + " us/event"
+                + ", per event: " + perEvent / events / 1000 + " us/event";
+    }
+
+    /** Reads the settings of an event as validation did for each action */
+    private static void readPerAction(Context context, String wifi) {
+
+        boolean result = false;
+        for (StateAction action : ACTIONS) {
+            switch (action) {
+            case ON:
+                if (DataManager.getTimeIntervalEnabled(context)) {
+                    result ^= DataManager.getTimeIntervalBegin(context) != null;
+                    result ^= DataManager.getTimeIntervalEnd(context) != null;
+                }
+                result ^= DataManager.getUnkLocationActivates(context);
+                break;
+
+            case ADD:
+                result ^= !DataManager.isExistantWifi(context, wifi) && DataManager.getAddWifis(context)
+                        || DataManager.isExistantWifi(context, wifi) && DataManager.getWifiAction(context, StateAction.ADD, wifi);
+                break;
+
+            case CREATE_DEFERRED_OFF:
+            case CANCEL_DEFERRED_OFF:
+                result ^= DataManager.getOffAfterDiscTimeout(context) != 0;
+                break;
+
+            case DATA_OFF:
+                result ^= DataManager.getMobileDataManaged(context)
+                        && (!DataManager.isExistantWifi(context, wifi) || DataManager.getWifiEnabled(context, wifi));
+                break;
+
+            case DATA_RESTORE:
+                result ^= DataManager.getMobileDataManaged(context);
+                break;
+
+            default:
+                break;
+            }
+        }
+        sSink = result;
+    }
+
+    /** Reads the settings of an event once through a validation context */
+    private static void readPerEvent(Context context, String wifi) {
+
+        boolean result = false;
+        ValidationContext validation = new ValidationContext(context);
+        for (StateAction action : ACTIONS) {
+            switch (action) {
+            case ON:
+                result ^= validation.isInTimeInterval();
+                result ^= validation.getUnkLocationActivates();
+                break;
+
+            case ADD:
+                result ^= !validation.isExistantWifi(wifi) && validation.getAddWifis() || validation.getWifiAddAction(wifi);
+                break;
+
+            case CREATE_DEFERRED_OFF:
+            case CANCEL_DEFERRED_OFF:
+                result ^= validation.getOffAfterDiscTimeout() != 0;
+                break;
+
+            case DATA_OFF:
+                result ^= validation.getMobileDataManaged() && (!validation.isExistantWifi(wifi) || validation.getWifiEnabled(wifi));
+                break;
+
+            case DATA_RESTORE:
+                result ^= validation.getMobileDataManaged();
+                break;
+
+            default:
+                break;
+            }
+        }
+        sSink = result;
+    }
+}
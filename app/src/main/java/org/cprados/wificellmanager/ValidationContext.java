@@ -0,0 +1,161 @@
+/*
+ * ValidationContext.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager;
+
+import java.util.Calendar;
+
+import org.cprados.wificellmanager.StateMachine.StateAction;
+import org.cprados.wificellmanager.sys.Clock;
+
+import android.content.Context;
+
+/**
+ * Settings needed to validate the actions of an event, read from preferences once per event. Settings of the current
+ * wifi are read the first time they are needed and again only if current wifi changes while processing the event.
+ */
+public class ValidationContext {
+
+    /** Value of the time interval limits when it is not configured */
+    private static final int NO_TIME = -1;
+
+    /** Context used to read settings */
+    private final Context mContext;
+
+    /** Whether wifi is disabled within a daily time interval */
+    private final boolean mTimeIntervalEnabled;
+
+    /** Begin and end of the time interval in minutes of the day */
+    private final int mTimeIntervalBegin;
+    private final int mTimeIntervalEnd;
+
+    /** Minute of the day the event is processed */
+    private final int mNow;
+
+    /** Whether wifi is turned on at unknown locations */
+    private final boolean mUnkLocationActivates;
+
+    /** Whether new wifis are added */
+    private final boolean mAddWifis;
+
+    /** Whether mobile data is managed */
+    private final boolean mMobileDataManaged;
+
+    /** Timeout in seconds to turn wifi off after disconnection */
+    private final int mOffAfterDiscTimeout;
+
+    /** Wifi whose settings are loaded */
+    private String mWifi;
+
+    /** Whether wifi settings have been loaded */
+    private boolean mWifiLoaded;
+
+    /** Settings of the wifi loaded */
+    private boolean mWifiExistant;
+    private boolean mWifiAddAction;
+    private boolean mWifiEnabled;
+
+    /** Reads the settings from preferences */
+    public ValidationContext(Context context) {
+
+        mContext = context;
+        mTimeIntervalEnabled = DataManager.getTimeIntervalEnabled(context);
+
+        int[] begin = mTimeIntervalEnabled ? DataManager.getTimeIntervalBegin(context) : null;
+        int[] end = mTimeIntervalEnabled ? DataManager.getTimeIntervalEnd(context) : null;
+        if (begin != null && begin.length > 1 && end != null && end.length > 1) {
+            mTimeIntervalBegin = begin[0] * 60 + begin[1];
+            mTimeIntervalEnd = end[0] * 60 + end[1];
+        }
+        else {
+            mTimeIntervalBegin = NO_TIME;
+            mTimeIntervalEnd = NO_TIME;
+        }
+
+        Calendar now = Clock.getClock().getCalendar();
+        mNow = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        mUnkLocationActivates = DataManager.getUnkLocationActivates(context);
+        mAddWifis = DataManager.getAddWifis(context);
+        mMobileDataManaged = DataManager.getMobileDataManaged(context);
+        mOffAfterDiscTimeout = DataManager.getOffAfterDiscTimeout(context);
+    }
+
+    /** Checks if current time is inside the interval wifi has to be disabled */
+    public boolean isInTimeInterval() {
+
+        boolean result = false;
+        if (mTimeIntervalEnabled && mTimeIntervalBegin != NO_TIME) {
+            if (mTimeIntervalEnd >= mTimeIntervalBegin)
+                result = (mNow >= mTimeIntervalBegin) && (mNow < mTimeIntervalEnd);
+            else
+                result = (mNow >= mTimeIntervalBegin) || (mNow < mTimeIntervalEnd);
+        }
+        return result;
+    }
+
+    /** Returns whether wifi is turned on at unknown locations */
+    public boolean getUnkLocationActivates() {
+        return mUnkLocationActivates;
+    }
+
+    /** Returns whether new wifis are added */
+    public boolean getAddWifis() {
+        return mAddWifis;
+    }
+
+    /** Returns whether mobile data is managed */
+    public boolean getMobileDataManaged() {
+        return mMobileDataManaged;
+    }
+
+    /** Returns timeout in seconds to turn wifi off after disconnection */
+    public int getOffAfterDiscTimeout() {
+        return mOffAfterDiscTimeout;
+    }
+
+    /** Loads the settings of a wifi unless they are already loaded */
+    private void loadWifi(String wifi) {
+
+        if (!mWifiLoaded || (wifi == null ? mWifi != null : !wifi.equals(mWifi))) {
+            mWifi = wifi;
+            mWifiExistant = DataManager.isExistantWifi(mContext, wifi);
+            mWifiAddAction = mWifiExistant && DataManager.getWifiAction(mContext, StateAction.ADD, wifi);
+            mWifiEnabled = mWifiExistant && DataManager.getWifiEnabled(mContext, wifi);
+            mWifiLoaded = true;
+        }
+    }
+
+    /** Checks if a wifi is known */
+    public boolean isExistantWifi(String wifi) {
+        loadWifi(wifi);
+        return mWifiExistant;
+    }
+
+    /** Returns whether cell locations are added for a known wifi */
+    public boolean getWifiAddAction(String wifi) {
+        loadWifi(wifi);
+        return mWifiAddAction;
+    }
+
+    /** Returns whether a known wifi is enabled */
+    public boolean getWifiEnabled(String wifi) {
+        loadWifi(wifi);
+        return mWifiEnabled;
+    }
+}
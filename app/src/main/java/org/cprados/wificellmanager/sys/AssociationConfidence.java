@@ -0,0 +1,295 @@
+/*
+ * AssociationConfidence.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cprados.wificellmanager.DataManager;
+import org.cprados.wificellmanager.sys.EventRecorder.EventRecord;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.telephony.SignalStrength;
+import android.util.Log;
+
+/**
+ * Confidence of the wifi-cell associations, aggregated from the signal strength of the cell each time it is sighted
+ * while connected to the wifi. The mean of the first sightings is taken and then a moving average, so a weak cell seen
+ * once at the edge of coverage keeps a low confidence until it is seen with a good signal. Associations never sighted
+ * with a known signal are fully confident.
+ */
+public class AssociationConfidence {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = AssociationConfidence.class.getPackage().getName();
+
+    /** Signal level when it is not known */
+    public static final int SIGNAL_UNKNOWN = -1;
+
+    /** Confidence of associations without sightings */
+    public static final int CONFIDENCE_FULL = 100;
+
+    /** Number of sightings averaged before the confidence becomes a moving average */
+    private static final int MAX_SAMPLES = 8;
+
+    /** Range of CDMA signal in dBm mapped to signal levels */
+    private static final int MIN_DBM = -100;
+    private static final int MAX_DBM = -75;
+
+    /** Maximum GSM signal strength in asu */
+    private static final int MAX_ASU = 31;
+
+    /** Time in ms after wifi is turned on within which a connection makes it useful */
+    public static final long CONNECT_WINDOW = 2 * 60 * 1000L;
+
+    /** The instance of this singleton class */
+    private static AssociationConfidence sInstance;
+
+    /** Confidence in percent and number of sightings by cell, by wifi */
+    private final Map<String, Map<CellIdentity, int[]>> mConfidences = new HashMap<String, Map<CellIdentity, int[]>>();
+
+    /** Returns existent instance of the class or creates a new one loading the confidences saved */
+    public static synchronized AssociationConfidence getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AssociationConfidence(DataManager.getConfidences(context));
+        }
+        return sInstance;
+    }
+
+    /** Creates the model of the given serialized confidences by wifi */
+    private AssociationConfidence(Map<String, byte[]> confidences) {
+
+        for (Map.Entry<String, byte[]> entry : confidences.entrySet()) {
+            Map<CellIdentity, int[]> cells = new HashMap<CellIdentity, int[]>();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(entry.getValue());
+                while (buffer.hasRemaining()) {
+                    int network = buffer.getInt();
+                    long cell = buffer.getLong();
+                    int[] confidence = new int[] { buffer.getInt(), buffer.getInt() };
+                    cells.put(new CellIdentity(network, (int) (cell >>> 32), (int) cell), confidence);
+                }
+            }
+            catch (BufferUnderflowException e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+            mConfidences.put(entry.getKey(), cells);
+        }
+    }
+
+    /** Returns the signal level in percent of the signal strength reported by the system, or SIGNAL_UNKNOWN */
+    public static int getSignalLevel(SignalStrength signal) {
+
+        int result = SIGNAL_UNKNOWN;
+        if (signal != null) {
+            if (signal.isGsm()) {
+                int asu = signal.getGsmSignalStrength();
+                if (asu >= 0 && asu <= MAX_ASU) {
+                    result = asu * 100 / MAX_ASU;
+                }
+            }
+            else {
+                int dbm = (signal.getCdmaDbm() < 0) ? signal.getCdmaDbm() : signal.getEvdoDbm();
+                if (dbm < 0) {
+                    result = Math.max(0, Math.min(100, (dbm - MIN_DBM) * 100 / (MAX_DBM - MIN_DBM)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Aggregates a sighting of a cell with a given signal level while connected to a wifi. Unknown levels are ignored */
+    public synchronized void observe(Context context, String wifi, CellIdentity cell, int level) {
+
+        if (wifi != null && cell != null && level != SIGNAL_UNKNOWN) {
+            Map<CellIdentity, int[]> cells = mConfidences.get(wifi);
+            if (cells == null) {
+                mConfidences.put(wifi, cells = new HashMap<CellIdentity, int[]>());
+            }
+            int[] confidence = cells.get(cell);
+            if (confidence == null) {
+                cells.put(cell, confidence = new int[2]);
+            }
+            confidence[1] = Math.min(confidence[1] + 1, MAX_SAMPLES);
+            confidence[0] += Math.round((level - confidence[0]) / (float) confidence[1]);
+            save(context, wifi, cells);
+        }
+    }
+
+    /** Returns the confidence in percent of the association of a wifi to a cell */
+    public synchronized int getConfidence(String wifi, CellIdentity cell) {
+
+        Map<CellIdentity, int[]> cells = mConfidences.get(wifi);
+        int[] confidence = (cells != null) ? cells.get(cell) : null;
+        return (confidence != null) ? confidence[0] : CONFIDENCE_FULL;
+    }
+
+    /** Returns the highest confidence in percent of the associations of some wifis to a cell */
+    public synchronized int getConfidence(Set<String> wifis, CellIdentity cell) {
+
+        int result = 0;
+        for (Iterator<String> iterator = wifis.iterator(); iterator.hasNext() && result < CONFIDENCE_FULL;) {
+            result = Math.max(result, getConfidence(iterator.next(), cell));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the highest confidence in percent of the associations sighted to a cell id and lac in any network, full
+     * if there is none. Event records do not carry the radio type the network is packed with
+     */
+    private int getCellConfidence(long cell) {
+
+        int result = SIGNAL_UNKNOWN;
+        for (Map<CellIdentity, int[]> cells : mConfidences.values()) {
+            for (Map.Entry<CellIdentity, int[]> entry : cells.entrySet()) {
+                if (entry.getKey().getLow() == cell) {
+                    result = Math.max(result, entry.getValue()[0]);
+                }
+            }
+        }
+        return (result != SIGNAL_UNKNOWN) ? result : CONFIDENCE_FULL;
+    }
+
+    /** Removes the confidence of the association of a wifi to a cell */
+    public synchronized void removeCell(Context context, String wifi, CellIdentity cell) {
+
+        Map<CellIdentity, int[]> cells = mConfidences.get(wifi);
+        if (cells != null && cells.remove(cell) != null) {
+            save(context, wifi, cells);
+        }
+    }
+
+    /** Removes the confidences of the associations of a wifi */
+    public synchronized void remove(Context context, String wifi) {
+        if (mConfidences.remove(wifi) != null) {
+            DataManager.setConfidence(context, wifi, null);
+        }
+    }
+
+    /** Saves the confidences of the associations of a wifi */
+    private void save(Context context, String wifi, Map<CellIdentity, int[]> cells) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(cells.size() * 20);
+        for (Map.Entry<CellIdentity, int[]> entry : cells.entrySet()) {
+            buffer.putInt(entry.getKey().getNetwork());
+            buffer.putLong(entry.getKey().getLow());
+            buffer.putInt(entry.getValue()[0]);
+            buffer.putInt(entry.getValue()[1]);
+        }
+        DataManager.setConfidence(context, wifi, buffer.array());
+        if (cells.isEmpty()) {
+            mConfidences.remove(wifi);
+        }
+    }
+
+    /**
+     * Replays the wifi toggles recorded and scores the ones that would have been blocked by the confidences of the
+     * cells where they happened. A wifi turned on is useful if it connects within the window, and wasted otherwise
+     */
+    public synchronized Evaluation evaluate(List<EventRecord> records, int threshold) {
+
+        Evaluation result = new Evaluation();
+        long cell = 0;
+        boolean enabled = false;
+        boolean pending = false;
+        boolean blocked = false;
+        long onTime = 0;
+
+        for (Iterator<EventRecord> iterator = records.iterator(); iterator.hasNext();) {
+            EventRecord record = iterator.next();
+            if (record.cid > 0 && record.lac > 0) {
+                cell = FingerprintIndex.getCellKey(record.cid, record.lac);
+            }
+
+            // Resolves the wifi turned on as useful if it connected or as wasted if it did not within the window
+            if (pending && (record.connected || record.time - onTime > CONNECT_WINDOW
+                    || record.wifiState == WifiManager.WIFI_STATE_DISABLED)) {
+                result.score(record.connected && record.time - onTime <= CONNECT_WINDOW, blocked);
+                pending = false;
+            }
+
+            // Wifi turned on
+            if (record.action == EventRecorder.ACTION_WIFI_STATE && record.wifiState != EventRecorder.UNKNOWN) {
+                boolean wasEnabled = enabled;
+                enabled = record.wifiState == WifiManager.WIFI_STATE_ENABLED;
+                if (enabled && !wasEnabled) {
+                    pending = true;
+                    blocked = (cell != 0) && getCellConfidence(cell) < threshold;
+                    onTime = record.time;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Results of an offline evaluation */
+    public static class Evaluation {
+
+        /** Number of times wifi was turned on, and of them useful and wasted */
+        public int ons;
+        public int useful;
+        public int wasted;
+
+        /** Number of useful and wasted times wifi was turned on that the threshold would have blocked */
+        public int blockedUseful;
+        public int blockedWasted;
+
+        /** Scores a time wifi was turned on */
+        private void score(boolean isUseful, boolean isBlocked) {
+            ons++;
+            if (isUseful) {
+                useful++;
+                blockedUseful += isBlocked ? 1 : 0;
+            }
+            else {
+                wasted++;
+                blockedWasted += isBlocked ? 1 : 0;
+            }
+        }
+
+        /** Returns a summary of the evaluation */
+        @Override
+        public String toString() {
+            return "ons: " + ons + ", useful: " + useful + ", wasted: " + wasted + ", blocked wasted: " + blockedWasted
+                    + ", blocked useful: " + blockedUseful;
+        }
+    }
+
+    /** Returns a summary of the confidences */
+    @Override
+    public synchronized String toString() {
+
+        int count = 0;
+        long sum = 0;
+        for (Map<CellIdentity, int[]> cells : mConfidences.values()) {
+            for (int[] confidence : cells.values()) {
+                count++;
+                sum += confidence[0];
+            }
+        }
+        return "sighted: " + count + ", mean(%): " + ((count > 0) ? sum / count : CONFIDENCE_FULL);
+    }
+}
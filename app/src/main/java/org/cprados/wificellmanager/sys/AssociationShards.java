@@ -0,0 +1,233 @@
+/*
+ * AssociationShards.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.cprados.wificellmanager.BuildConfig;
+import org.cprados.wificellmanager.DataManager;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Wifi-cell associations partitioned in shards by network and location area. A directory with the preference keys of
+ * the associations of each area is built in a single pass, while the associations of an area are only parsed when a
+ * cell of it is looked up. The shards of the current and most recently visited areas stay loaded, and the rest are
+ * evicted when there are too many or memory runs low.
+ */
+public class AssociationShards {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = AssociationShards.class.getPackage().getName();
+
+    /** Maximum number of shards loaded */
+    public static final int MAX_LOADED = 4;
+
+    /** Wifis associated to each cell of an area */
+    private static class Shard {
+
+        /** Wifis by cell id */
+        final Map<Integer, Set<String>> cells = new HashMap<Integer, Set<String>>();
+
+        /** Estimated memory used in bytes */
+        long bytes;
+
+        /** Time it took to load in ns */
+        long loadTime;
+
+        /** Adds an association to the shard */
+        void add(int cid, String wifi) {
+            Set<String> wifis = cells.get(cid);
+            if (wifis == null) {
+                cells.put(cid, wifis = new TreeSet<String>());
+                bytes += 80;
+            }
+            if (wifis.add(wifi)) {
+                bytes += 64 + 2 * wifi.length();
+            }
+        }
+    }
+
+    /** The instance of this singleton class */
+    private static AssociationShards sInstance;
+
+    /** Preference keys of the associations by area key, or null if the directory has to be rebuilt */
+    private Map<Long, List<String>> mDirectory;
+
+    /** Shards loaded by area key, in order of last access */
+    private final LinkedHashMap<Long, Shard> mShards = new LinkedHashMap<Long, Shard>(MAX_LOADED + 1, 0.75f, true);
+
+    /** Number of lookups, of them answered by the directory alone, of shard loads and of evictions */
+    private int mLookups;
+    private int mMisses;
+    private int mLoads;
+    private int mEvictions;
+
+    /** Total time spent loading shards in ns */
+    private long mLoadTime;
+
+    /** Returns existent instance of the class or creates a new one */
+    public static synchronized AssociationShards getInstance() {
+        if (sInstance == null) {
+            sInstance = new AssociationShards();
+        }
+        return sInstance;
+    }
+
+    /** Returns the key of the area of a cell: its network and location area code */
+    private static long getAreaKey(int network, int lac) {
+        return ((long) network << 32) | (lac & 0xFFFFFFFFL);
+    }
+
+    /** Returns the directory of areas, building it from saved associations if needed */
+    private Map<Long, List<String>> getDirectory(Context context) {
+
+        if (mDirectory == null) {
+            Map<Long, List<String>> directory = new HashMap<Long, List<String>>();
+            for (String key : DataManager.getWifiCellKeys(context)) {
+                int[] cell = DataManager.getCellOfWifiCellPreference(key);
+                if (cell != null) {
+                    addKey(directory, getAreaKey(DataManager.getNetwork(cell), cell[1]), key);
+                }
+            }
+            mDirectory = directory;
+        }
+        return mDirectory;
+    }
+
+    /** Adds the preference key of an association to the directory */
+    private static void addKey(Map<Long, List<String>> directory, long area, String key) {
+        List<String> keys = directory.get(area);
+        if (keys == null) {
+            directory.put(area, keys = new ArrayList<String>());
+        }
+        keys.add(key);
+    }
+
+    /** Returns if there is any association in the area of a cell. It is not counted as a lookup */
+    public synchronized boolean hasShard(Context context, CellIdentity cell) {
+        return getDirectory(context).containsKey(getAreaKey(cell.getNetwork(), cell.lac));
+    }
+
+    /**
+     * Returns the wifis associated to a cell, loading the shard of its area if needed. Returns null without loading
+     * anything if there is no association in the area
+     */
+    public synchronized Set<String> getWifisByCell(Context context, CellIdentity cell) {
+
+        Set<String> result = null;
+        long area = getAreaKey(cell.getNetwork(), cell.lac);
+        List<String> keys = getDirectory(context).get(area);
+        mLookups++;
+        if (keys != null) {
+            Shard shard = mShards.get(area);
+            if (shard == null) {
+                shard = load(area, keys);
+            }
+            result = shard.cells.get(cell.cid);
+        }
+        else {
+            mMisses++;
+        }
+        return result;
+    }
+
+    /**
+     * Loads the shard of an area parsing the keys of its associations, evicting the least recently used if there are
+     * too many
+     */
+    private Shard load(long area, List<String> keys) {
+
+        long start = System.nanoTime();
+        Shard result = new Shard();
+        for (String key : keys) {
+            int[] cell = DataManager.getCellOfWifiCellPreference(key);
+            String wifi = DataManager.getWifiOfWifiCellPreference(key);
+            if (cell != null && wifi != null) {
+                result.add(cell[0], wifi);
+            }
+        }
+        result.loadTime = System.nanoTime() - start;
+        mLoadTime += result.loadTime;
+        mLoads++;
+
+        mShards.put(area, result);
+        for (Iterator<Long> iterator = mShards.keySet().iterator(); mShards.size() > MAX_LOADED && iterator.hasNext();) {
+            iterator.next();
+            iterator.remove();
+            mEvictions++;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(LOGTAG, "AssociationShards: Loaded area " + Long.toHexString(area) + " with " + result.cells.size() + " cells in "
+                    + result.loadTime / 1000 + " us");
+        }
+        return result;
+    }
+
+    /** Evicts all the shards but the most recently used one, to release memory */
+    public synchronized void trim() {
+        for (Iterator<Long> iterator = mShards.keySet().iterator(); mShards.size() > 1 && iterator.hasNext();) {
+            iterator.next();
+            iterator.remove();
+            mEvictions++;
+        }
+    }
+
+    /** Updates the directory and the shard of the area of a cell after an association to it has been added */
+    public synchronized void onWifiCellAdded(String wifi, CellIdentity cell) {
+
+        long area = getAreaKey(cell.getNetwork(), cell.lac);
+        if (mDirectory != null) {
+            addKey(mDirectory, area, DataManager.getWifiCellPreferenceKey(wifi, cell.cid, cell.lac, cell.getNetwork()));
+        }
+        Shard shard = mShards.get(area);
+        if (shard != null) {
+            shard.add(cell.cid, wifi);
+        }
+    }
+
+    /** Drops the directory and the shards after associations have been deleted, so they are reloaded when needed */
+    public synchronized void onWifiCellsDeleted() {
+        mDirectory = null;
+        mShards.clear();
+    }
+
+    /** Prints the shards loaded with their memory use and load latency */
+    public synchronized void dump(PrintWriter writer) {
+
+        writer.println("Association areas: " + ((mDirectory != null) ? mDirectory.size() : "not loaded") + ", lookups: "
+                + mLookups + ", misses: " + mMisses + ", loads: " + mLoads + ", evictions: " + mEvictions
+                + ", mean load(us): " + ((mLoads > 0) ? mLoadTime / mLoads / 1000 : 0));
+        for (Map.Entry<Long, Shard> entry : mShards.entrySet()) {
+            Shard shard = entry.getValue();
+            writer.println("  Area " + Long.toHexString(entry.getKey()) + ": cells: " + shard.cells.size() + ", memory(bytes): " + shard.bytes
+                    + ", load(us): " + shard.loadTime / 1000);
+        }
+    }
+}
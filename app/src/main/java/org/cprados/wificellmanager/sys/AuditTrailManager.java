@@ -224,7 +224,7 @@ public class AuditTrailManager {
     public void writeRecord (ActivityRecord record) {        
         
         // Opens todays log file for writing
-        Date date  = new Date();
+        Date date  = Clock.getClock().getDate();
         FileOutputStream outStream = getOutStream(date);
         
         if (outStream != null && record != null) {
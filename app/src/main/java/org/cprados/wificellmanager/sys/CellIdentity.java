@@ -0,0 +1,142 @@
+/*
+ * CellIdentity.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+/**
+ * Global identity of a cell: radio type, mobile country and network codes, location area code and cell id. It is
+ * packed in two longs, the network in the high one and location area code and cell id in the low one. The network is
+ * also packed in an int that qualifies the cell keys saved, zero for cells whose network is not known.
+ */
+public final class CellIdentity {
+
+    /** Radio types */
+    public static final int RADIO_UNKNOWN = 0;
+    public static final int RADIO_GSM = 1;
+    public static final int RADIO_CDMA = 2;
+
+    /** Network of cells whose radio type or operator are not known */
+    public static final int NETWORK_UNKNOWN = 0;
+
+    /** Radio type */
+    public final int radio;
+
+    /** Mobile country code, 0 for CDMA */
+    public final int mcc;
+
+    /** Mobile network code, or network id for CDMA */
+    public final int mnc;
+
+    /** Location area code, or system id for CDMA */
+    public final int lac;
+
+    /** Cell id, or base station id for CDMA */
+    public final int cid;
+
+    /** Packed identity */
+    private final long mHigh;
+    private final long mLow;
+
+    /** Hash code computed once */
+    private final int mHash;
+
+    /** Creates the identity of a cell of a packed network */
+    public CellIdentity(int network, int lac, int cid) {
+        this.radio = (network >>> 28) & 0x7;
+        this.mcc = (network >>> 16) & 0x3FF;
+        this.mnc = network & 0xFFFF;
+        this.lac = lac;
+        this.cid = cid;
+        mHigh = network & 0xFFFFFFFFL;
+        mLow = FingerprintIndex.getCellKey(cid, lac);
+        long mixed = mHigh * 0x9E3779B97F4A7C15L ^ mLow;
+        mHash = (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /**
+     * Returns the identity of a cell reported with a radio type and an operator code, the MCC and MNC digits for GSM
+     * or the network id for CDMA. The network is unknown if they are not valid
+     */
+    public static CellIdentity of(int radio, String operator, int lac, int cid) {
+        return new CellIdentity(getNetwork(radio, operator), lac, cid);
+    }
+
+    /** Returns the packed network of a radio type and an operator code */
+    public static int getNetwork(int radio, String operator) {
+
+        int result = NETWORK_UNKNOWN;
+        int code = parseDigits(operator);
+        if (radio == RADIO_GSM && code >= 0 && (operator.length() == 5 || operator.length() == 6)) {
+            result = (RADIO_GSM << 28) | ((code / ((operator.length() == 5) ? 100 : 1000)) << 16)
+                    | (code % ((operator.length() == 5) ? 100 : 1000));
+        }
+        else if (radio == RADIO_CDMA && code >= 0 && code <= 0xFFFF) {
+            result = (RADIO_CDMA << 28) | code;
+        }
+        return result;
+    }
+
+    /** Parses a string of up to 9 decimal digits. Returns -1 if it is not valid */
+    private static int parseDigits(String digits) {
+
+        int result = -1;
+        if (digits != null && digits.length() > 0 && digits.length() < 10) {
+            result = 0;
+            for (int i = 0; i < digits.length() && result >= 0; i++) {
+                char c = digits.charAt(i);
+                result = (c >= '0' && c <= '9') ? result * 10 + (c - '0') : -1;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the packed network, zero if it is not known */
+    public int getNetwork() {
+        return (int) mHigh;
+    }
+
+    /** Returns if the network of the cell is known */
+    public boolean isQualified() {
+        return mHigh != NETWORK_UNKNOWN;
+    }
+
+    /** Returns the high long of the packed identity: the network */
+    public long getHigh() {
+        return mHigh;
+    }
+
+    /** Returns the low long of the packed identity: location area code and cell id */
+    public long getLow() {
+        return mLow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof CellIdentity) && ((CellIdentity) o).mHigh == mHigh && ((CellIdentity) o).mLow == mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + radio + ", " + mcc + ", " + mnc + ", " + lac + ", " + cid + "]";
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * CellSnapshot.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import android.content.Intent;
+import android.telephony.CellLocation;
+import android.telephony.cdma.CdmaCellLocation;
+import android.telephony.gsm.GsmCellLocation;
+
+/**
+ * Immutable observation of the serving cell: radio type, operator code, location area code, cell id and time. It is
+ * parsed once from the cell location reported by the system, and travels in intents as a single array of three longs,
+ * so the listener, the service and the data lookups share the same parsing and cell identity.
+ */
+public final class CellSnapshot {
+
+    /** Extra name of the encoded snapshot in intents */
+    public static final String EXTRA_CELL = CellSnapshot.class.getName() + ".cell";
+
+    /** Encoded operator of snapshots without operator code */
+    private static final int NO_OPERATOR = -1;
+
+    /** Radio type as in cell identities */
+    public final int radio;
+
+    /** Operator code, or network id for CDMA, might be null */
+    public final String operator;
+
+    /** Location area code, or system id for CDMA */
+    public final int lac;
+
+    /** Cell id, or base station id for CDMA */
+    public final int cid;
+
+    /** Time of the observation in ms since boot */
+    public final long time;
+
+    /** Global identity of the cell */
+    private final CellIdentity mIdentity;
+
+    /** Hash code computed once */
+    private final int mHash;
+
+    /** Creates a snapshot of a cell observed at the given time */
+    public CellSnapshot(int radio, String operator, int lac, int cid, long time) {
+        this.radio = radio;
+        this.operator = operator;
+        this.lac = lac;
+        this.cid = cid;
+        this.time = time;
+        mIdentity = CellIdentity.of(radio, operator, lac, cid);
+        mHash = 31 * mIdentity.hashCode() + ((operator != null) ? operator.hashCode() : 0);
+    }
+
+    /**
+     * Returns the snapshot of a cell location reported by the system, or null if it is not known. Operator code is
+     * only used for GSM, CDMA takes the network id of the location
+     */
+    public static CellSnapshot fromLocation(CellLocation location, String networkOperator, long time) {
+
+        CellSnapshot result = null;
+
+        // GSM or UMTS cell location received
+        if (location instanceof GsmCellLocation) {
+            result = new CellSnapshot(CellIdentity.RADIO_GSM, networkOperator, ((GsmCellLocation) location).getLac(),
+                    ((GsmCellLocation) location).getCid(), time);
+        }
+        // CDMA cell location received
+        else if (location instanceof CdmaCellLocation) {
+            int networkId = ((CdmaCellLocation) location).getNetworkId();
+            result = new CellSnapshot(CellIdentity.RADIO_CDMA, (networkId != -1) ? String.valueOf(networkId) : null,
+                    ((CdmaCellLocation) location).getSystemId(), ((CdmaCellLocation) location).getBaseStationId(), time);
+        }
+        return result;
+    }
+
+    /** Returns the snapshot encoded in an intent, or null if it has none */
+    public static CellSnapshot fromIntent(Intent intent) {
+
+        CellSnapshot result = null;
+        long[] data = (intent != null) ? intent.getLongArrayExtra(EXTRA_CELL) : null;
+        if (data != null && data.length >= 3) {
+            int operator = (int) data[0];
+            String op = null;
+            if (operator != NO_OPERATOR) {
+                // Restores the leading zeros of the operator code from its length
+                op = String.valueOf(operator & 0xFFFFFF);
+                for (int length = operator >>> 24; op.length() < length;) {
+                    op = "0" + op;
+                }
+            }
+            result = new CellSnapshot((int) (data[0] >>> 32), op, (int) (data[1] >>> 32), (int) data[1], data[2]);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the snapshot in an intent. Operator codes are kept as digits and length, so codes that are not numeric
+     * are dropped
+     */
+    public Intent toIntent(Intent intent) {
+        long operator = encodeOperator(this.operator) & 0xFFFFFFFFL;
+        intent.putExtra(EXTRA_CELL, new long[] { ((long) radio << 32) | operator, mIdentity.getLow(), time });
+        return intent;
+    }
+
+    /** Returns the encoded form of an operator code: length in the high byte and numeric value in the rest */
+    private static int encodeOperator(String operator) {
+
+        int result = NO_OPERATOR;
+        if (operator != null && operator.length() > 0 && operator.length() <= 7) {
+            result = 0;
+            for (int i = 0; i < operator.length() && result != NO_OPERATOR; i++) {
+                char c = operator.charAt(i);
+                result = (c >= '0' && c <= '9') ? result * 10 + (c - '0') : NO_OPERATOR;
+            }
+            if (result != NO_OPERATOR) {
+                result |= operator.length() << 24;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the global identity of the cell */
+    public CellIdentity getIdentity() {
+        return mIdentity;
+    }
+
+    /** Returns if cell id and location area code are known */
+    public boolean isKnown() {
+        return cid > CellStateManager.CELL_UNKNOWN && lac > CellStateManager.CELL_UNKNOWN;
+    }
+
+    /** Returns if another snapshot observed the same cell and operator, whenever it was */
+    public boolean isSameCell(CellSnapshot other) {
+        return other != null && other.mHash == mHash && other.mIdentity.equals(mIdentity)
+                && ((operator == null) ? other.operator == null : operator.equals(other.operator));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof CellSnapshot) && isSameCell((CellSnapshot) o) && ((CellSnapshot) o).time == time;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + lac + ", " + cid + ", " + operator + "]";
+    }
+}
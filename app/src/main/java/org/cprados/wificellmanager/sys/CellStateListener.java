@@ -19,14 +19,15 @@
 package org.cprados.wificellmanager.sys;
 
 import org.cprados.wificellmanager.BuildConfig;
+import org.cprados.wificellmanager.DataManager;
 import org.cprados.wificellmanager.ManagerService;
 
 import android.content.Context;
 import android.content.Intent;
 import android.telephony.CellLocation;
 import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
-import android.telephony.cdma.CdmaCellLocation;
 import android.telephony.gsm.GsmCellLocation;
 import android.util.Log;
 
@@ -48,6 +49,20 @@ public class CellStateListener extends PhoneStateListener {
 	/** CellStateListener singleton instance variable */
 	private static CellStateListener sInstance = null;
 
+	/** Number of cell changes forwarded to the service and suppressed as duplicates */
+	private static volatile int sForwarded;
+	private static volatile int sSuppressed;
+
+	/** Last signal level in percent reported, or unknown */
+	private static volatile int sSignalLevel = AssociationConfidence.SIGNAL_UNKNOWN;
+
+	/** Time in ms within which a repeated cell is suppressed. Zero or less forwards every cell */
+	private long mDuplicateWindow;
+
+	/** Last cell forwarded and time it was forwarded in ms since boot */
+	private CellSnapshot mLast;
+	private long mLastTime;
+
 	/** Returns the unique instance of this class */
 	public static CellStateListener getCellChangeListener(Context appContext,String action) {
 		if (sInstance == null)
@@ -74,12 +89,15 @@ public class CellStateListener extends PhoneStateListener {
 
 		// Subscribes a CellChageListener to TelepphonyManager cell change events
 		if (enable) {
-			tm.listen(getCellChangeListener(appContext, action), LISTEN_CELL_LOCATION);
+			CellStateListener listener = getCellChangeListener(appContext, action);
+			listener.mDuplicateWindow = DataManager.getCellDuplicateWindow(appContext) * 1000L;
+			tm.listen(listener, LISTEN_CELL_LOCATION | LISTEN_SIGNAL_STRENGTHS);
 		}
 
 		// Cancels CellChageListener subscription the TelephonyManager events
 		else {
 			tm.listen(CellStateListener.getCellChangeListener(appContext, action),LISTEN_NONE);
+			sSignalLevel = AssociationConfidence.SIGNAL_UNKNOWN;
 			delete();
 		}
 	}
@@ -92,34 +110,70 @@ public class CellStateListener extends PhoneStateListener {
 			Log.d(LOGTAG, "CellStateListener: Location change event: " + location);
 		}
 
-		// Creates the intent with location data
-		Intent intent = new Intent();
-
+		// Parses the location once in a snapshot of the cell shared by the recorder and the manager service
+		CellSnapshot cell = null;
 		if (location != null) {
-			// GSM or UMTS cell location received
+			String op = null;
 			if (location instanceof GsmCellLocation) {
-				intent.putExtra(CellStateManager.EXTRA_CID,((GsmCellLocation) location).getCid());
-				intent.putExtra(CellStateManager.EXTRA_LAC,((GsmCellLocation) location).getLac());
 				TelephonyManager tm = (TelephonyManager) (mContext.getSystemService(Context.TELEPHONY_SERVICE));
-				if (tm != null) {
-					intent.putExtra(CellStateManager.EXTRA_OP, tm.getNetworkOperator());
+				op = (tm != null) ? tm.getNetworkOperator() : null;
+			}
+			cell = CellSnapshot.fromLocation(location, op, Clock.getClock().elapsedRealtime());
+		}
+
+		// Creates the intent with location data. Without it the service reads the location from Telephony Manager
+		Intent intent = new Intent();
+		if (cell != null) {
+			cell.toIntent(intent);
+		}
+
+		// Records the raw cell change if recording is active
+		EventRecorder.getInstance().recordCell(mAction, cell);
+
+		// Forwards intent to the manager service unless it repeats the last cell forwarded within the window.
+		// Periodic polls do not come through this listener so they are never suppressed
+		if (mContext != null && mAction != null) {
+			if (isDuplicate(cell)) {
+				sSuppressed++;
+				if (BuildConfig.DEBUG) {
+					Log.d(LOGTAG, "CellStateListener: Duplicate location change suppressed");
 				}
 			}
-			// CDMA cell location received
-			else if (location instanceof CdmaCellLocation) {
-				intent.putExtra(CellStateManager.EXTRA_CID,((CdmaCellLocation) location).getBaseStationId());
-				intent.putExtra(CellStateManager.EXTRA_LAC,((CdmaCellLocation) location).getSystemId());
-                int networkId = ((CdmaCellLocation) location).getNetworkId();
-                if (networkId != -1) {
-    				intent.putExtra(CellStateManager.EXTRA_OP, String.valueOf(networkId));                	
-                }
+			else {
+				sForwarded++;
+				ManagerService.forwardEvent(mContext, mAction, intent);
 			}
 		}
+	}
 
-		// Forwards intent to the manager service
-		if (mContext != null && mAction != null) {
-			ManagerService.forwardEvent(mContext, mAction, intent);
+	/** Keeps the signal level of the serving cell, that weights the confidence of the associations */
+	@Override
+	public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+		sSignalLevel = AssociationConfidence.getSignalLevel(signalStrength);
+	}
+
+	/** Returns the last signal level in percent reported for the serving cell, or unknown */
+	public static int getSignalLevel() {
+		return sSignalLevel;
+	}
+
+	/** Checks if a cell is the same as the last one forwarded within the window, remembering it otherwise */
+	private boolean isDuplicate(CellSnapshot cell) {
+
+		long now = (cell != null) ? cell.time : Clock.getClock().elapsedRealtime();
+		boolean result = (mDuplicateWindow > 0) && (now - mLastTime < mDuplicateWindow)
+				&& ((cell == null) ? mLast == null : cell.isSameCell(mLast));
+
+		if (!result) {
+			mLast = cell;
+			mLastTime = now;
 		}
+		return result;
+	}
+
+	/** Returns a summary of the cell changes forwarded and suppressed */
+	public static String getStats() {
+		return "forwarded: " + sForwarded + ", suppressed: " + sSuppressed;
 	}
 
 	/**
@@ -22,19 +22,11 @@ import java.util.Set;
 
 import org.cprados.wificellmanager.BuildConfig;
 import org.cprados.wificellmanager.DataManager;
-import org.cprados.wificellmanager.StateMachine;
 import org.cprados.wificellmanager.StateMachine.StateAction;
 import org.cprados.wificellmanager.StateMachine.StateEvent;
 
-import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.location.LocationManager;
-import android.os.Bundle;
-import android.telephony.CellLocation;
-import android.telephony.TelephonyManager;
-import android.telephony.cdma.CdmaCellLocation;
-import android.telephony.gsm.GsmCellLocation;
 import android.util.Log;
 
 /** Manages changes in cell location state of the system */
@@ -43,21 +35,6 @@ public class CellStateManager {
     /** Tag for logging this class messages */
     private static final String LOGTAG = CellStateManager.class.getPackage().getName();
         
-    /** Extra name for Location Area Code that may be included as extra data in intents to launch this service */
-    public static final String EXTRA_LAC = CellStateManager.class.getName() + ".lac";
-
-    /** Extra name for Cell Id that may be included in intents to launch this service */
-    public static final String EXTRA_CID = CellStateManager.class.getName() + ".cid";
-    
-    /** Extra name for operator code that may be included in intents to launch this service */
-    public static final String EXTRA_OP = CellStateManager.class.getName() + ".op";
-    
-    /** Extra name for number of nearby wifis discovered when a wifi state change event is received by this service */
-    private static final String EXTRA_NEARBY_WIFIS = CellStateManager.class.getName() + ".nearby_wifis";
-    
-    /** Extra name initiator for flag indicating if any nearby wifi requires an automatic action */
-    private static final String EXTRA_WIFIS_ACTION = CellStateManager.class.getName() + ".wifis_action_";
-    
     /** Action of the intents sent to the service to refresh cell location */
     public static final String CELL_CHANGE_ACTION = CellStateManager.class.getName() + ".cell_refresh";
 
@@ -66,69 +43,81 @@ public class CellStateManager {
     
     /**
      * Determines if current cell location is inside or outside a known area and updates cid, lac, and nearby wifis
-     * state data extras
+     * of the service state
+     */
+    public static StateEvent getCellState (Context context, Intent intent, ServiceState stateData) {
+        return getCellState(new DeviceSnapshot(context, intent), stateData);
+    }
+    
+    /**
+     * Determines if cell location of a device snapshot is inside or outside a known area and updates cid, lac, and 
+     * nearby wifis of the service state
      */
-    public static StateEvent getCellState (Context context, Intent intent, Bundle stateData) {
+    public static StateEvent getCellState (DeviceSnapshot snapshot, ServiceState stateData) {
+        Context context = snapshot.getContext();
         StateEvent result = null;
         int cid = CELL_UNKNOWN;
         int lac = CELL_UNKNOWN;
         String op = null;
         
-        // Retrieves Cell Id, Lac and Operator code from Telephony Manager
-        if (intent == null || !intent.hasExtra(EXTRA_CID) || !intent.hasExtra(EXTRA_LAC) || !intent.hasExtra(EXTRA_OP)) {
-            
-            // Force update location fix if configured
-            forceLocationUpdate(context);
+        // Force update location fix if configured and location is neither reported by the event nor read yet
+        if (!snapshot.isServingCellReported() && !snapshot.hasServingCell() && DataManager.getForceUpdateLocation(context)) {
+            LocationRefresher.getInstance().request(context);
+        }
         
-            TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-            CellLocation location = tm.getCellLocation();
+        // Retrieves the cell from the event intent or else from Telephony Manager
+        CellSnapshot location = snapshot.getServingCell();
+        if (location != null) {
+            cid = location.cid;
+            lac = location.lac;
+            op = location.operator;
+            if (BuildConfig.DEBUG) {
+                Log.d(LOGTAG, "CellStateManager: Location obtained: " + location);
+            }
             
-            if (location != null) {
-                // GSM or UMTS cell location received
-                if (location instanceof GsmCellLocation) {
-                    cid = ((GsmCellLocation) location).getCid();
-                    lac = ((GsmCellLocation) location).getLac();
-                    op = tm.getNetworkOperator();
-                }
-                // CDMA cell location received
-                else if (location instanceof CdmaCellLocation) {
-                    cid = ((CdmaCellLocation) location).getBaseStationId();
-                    lac = ((CdmaCellLocation) location).getSystemId();
-                    int networkId = ((CdmaCellLocation) location).getNetworkId();
-                    op = (networkId != -1) ? String.valueOf(networkId) : null;
-                }
-                if (BuildConfig.DEBUG) {
-                    Log.d(LOGTAG, "CellStateManager: Location obtained: [" + lac + ", " + cid + ", " + op + "]");
-                }
+            // A fresh fix has arrived, location refresh is no longer needed
+            if (snapshot.isServingCellReported() && location.isKnown()) {
+                LocationRefresher.getInstance().onCellFix(context);
             }
         }
-        
-        // Retrieves Cell Id, Lac and Operator code from intent
-        else {
-            cid = intent.getIntExtra(EXTRA_CID, CELL_UNKNOWN);
-            lac = intent.getIntExtra(EXTRA_LAC, CELL_UNKNOWN);
-            op = intent.getStringExtra(EXTRA_OP);
-        }
                                         
         // Calculates number of nearby wifis and determines cell state
         Set<String> wifis = null;
         int numWifis = 0;        
+        CellIdentity cell = (location != null) ? location.getIdentity() : new CellIdentity(CellIdentity.NETWORK_UNKNOWN, lac, cid);
         if ((cid > CELL_UNKNOWN) && (lac > CELL_UNKNOWN)) {            
             
+            // Qualifies with its network the data saved for the cell before its network was known
+            DataManager.migrateCell(context, cid, lac, cell.getNetwork());
+            
+            // Wifis associated to the cell or, if none is enabled, whose location fingerprint matches the cells observed.
+            // Cells of areas without associations are found without loading any shard and only matched by fingerprint.
+            // Cells whose associations are not confident enough are not matched at all, as they were learnt into the
+            // fingerprints of the same wifis. Cells without associations are enabled
+            Set<String> cellWifis = AssociationShards.getInstance().getWifisByCell(context, cell);
+            if (cellWifis == null || DataManager.getCellEnabled(context, cid, lac, cell.getNetwork())) {
+                boolean confident = (cellWifis == null) || AssociationConfidence.getInstance(context).getConfidence(cellWifis, cell)
+                        >= DataManager.getConfidenceThreshold(context);
+                if (cellWifis != null && confident) {
+                    wifis = cellWifis;
+                }
+                if (confident && (wifis == null || DataManager.getCountWifisEnabled(context, wifis) <= 0)) {
+                    wifis = getWifisByFingerprint(snapshot, cid, lac);
+                }
+            }
+            
             // Cell state is IN
-        	if ((DataManager.getCellEnabled(context, cid, lac) &&
-                    (wifis = DataManager.getWifisByCell(context, cid, lac))!= null) && 
-                    (numWifis = DataManager.getCountWifisEnabled(context, wifis)) > 0) {
+        	if (wifis != null && (numWifis = DataManager.getCountWifisEnabled(context, wifis)) > 0) {
                 result = StateEvent.IN;
                 // Saves the flags that indicate if auto on and off actions are enabled in this cell (for any wifi in this cell)
-                stateData.putBoolean(EXTRA_WIFIS_ACTION + StateAction.ON, DataManager.getWifiAction(context, StateAction.ON, wifis));
-                stateData.putBoolean(EXTRA_WIFIS_ACTION + StateAction.OFF, DataManager.getWifiAction(context, StateAction.OFF, wifis));
+                stateData.setActionEnabled(StateAction.ON, DataManager.getWifiAction(context, StateAction.ON, wifis));
+                stateData.setActionEnabled(StateAction.OFF, DataManager.getWifiAction(context, StateAction.OFF, wifis));
             }
         	
             // Cell state is OUT
             else {
                 // Clear the flag that indicate if auto on action is enabled in this cell 
-                stateData.putBoolean(EXTRA_WIFIS_ACTION + StateAction.ON, true);
+                stateData.setActionEnabled(StateAction.ON, true);
                 result = StateEvent.OUT;
             }            
         }
@@ -140,10 +129,9 @@ public class CellStateManager {
 
         // Saves state data information: Cell Id, Lac, Operator and number of nearby wifis in this cell
         if (result != null) {
-            stateData.putInt(EXTRA_CID, cid);
-            stateData.putInt(EXTRA_LAC, lac);
-            stateData.putString(EXTRA_OP, op);
-            stateData.putInt(EXTRA_NEARBY_WIFIS, numWifis);
+            stateData.setCurrentCell(cid, lac, cell.getNetwork());
+            stateData.setOperator(op);
+            stateData.setNearbyWifis(numWifis);
         }
         
         // Discards location change
@@ -156,84 +144,22 @@ public class CellStateManager {
         return result;
     }    
     
-    /** Returns Cid extra information from stateData bundle */
-    public static int getCid (Bundle stateData) {
-        int cid = (stateData != null) ? stateData.getInt(EXTRA_CID, CELL_UNKNOWN) : CELL_UNKNOWN;
-        return cid;
-    }
-    
-    /** Returns Lac extra information from stateData bundle */    
-    public static int getLac (Bundle stateData) {
-        int lac = (stateData != null) ? stateData.getInt(EXTRA_LAC, CELL_UNKNOWN) : CELL_UNKNOWN;
-        return lac;
-    }
-    
-    /** Sets Lac and Cid extra information to the stateData bundle */
-    public static void setCurrentCell (Bundle stateData, int[] currentCell) {
-        if (stateData != null && currentCell != null && currentCell.length > 1) {
-            stateData.putInt(EXTRA_CID, currentCell[0]);
-            stateData.putInt(EXTRA_LAC, currentCell[1]);
-        }
-    }
- 
-    /** Returns Operator extra information from stateData bundle */    
-    public static String getOperator (Bundle stateData) {
-        String op = (stateData != null) ? stateData.getString(EXTRA_OP) : null;
-        return op;
-    }
-
-    /** Sets Operator extra information to the stateData bundle */
-    public static void setOperator (Bundle stateData, String op) {
-        if (stateData != null && op != null && op.length() > 1) {
-            stateData.putString(EXTRA_OP, op);
-        }
-    }
-    
-    /** Returns number of nearby wifis extra information from stateData bundle */    
-    public static int getNearbyWifis (Bundle stateData) {
-        int numWifis = (stateData != null) ? stateData.getInt(EXTRA_NEARBY_WIFIS, 0) : 0;
-        return numWifis;
-    }    
-    
-    /** Sets number of nearby wifis extra information to the stateData bundle*/
-    public static void setNearbyWifis (Bundle stateData, int numWifis) {
-        if (stateData != null ) {
-            stateData.putInt(EXTRA_NEARBY_WIFIS, numWifis);
-        }
-    }
-
-    /** Returns whether action ON or OFF enabled extra information from stateData bundle */
-    public static boolean getActionEnabled (Bundle stateData, StateMachine.StateAction action) {
-        boolean wifiAction = true;        
-        if (action !=null && stateData != null) {
-            String key = EXTRA_WIFIS_ACTION + action.name();            
-            wifiAction = (stateData != null && stateData.containsKey(key))? stateData.getBoolean(key) : true;
-        }
-        return wifiAction;
-    }    
-
-    /** Sets whether action ON or OFF are enabled extra information to the stateData bundle */
-    public static void setActionEnabled (Bundle stateData, StateMachine.StateAction action, boolean value) {
-        if (stateData != null && action !=null) { 
-            stateData.putBoolean(EXTRA_WIFIS_ACTION + action.name(), value);
-        }
-    }
-    
-    /** Fix to force android to refresh cell id and lac before getting it via Telephony Manager API */
-    private static void forceLocationUpdate(Context context) {
-
-        if (DataManager.getForceUpdateLocation(context)) {
-            LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-
-            if (lm != null) {
-
-                double latitude = 40.189326;
-                double longitude = -2.732304;
-
-                Intent intent = new Intent("forceLocationUpdate");
-                PendingIntent proximityIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
-                lm.addProximityAlert(latitude, longitude, 100000, 1000, proximityIntent);
+    /** 
+     * Returns the wifis whose location fingerprint matches the serving cell and neighbouring cells of a snapshot, or 
+     * null if fingerprint matching is disabled
+     */
+    private static Set<String> getWifisByFingerprint(DeviceSnapshot snapshot, int cid, int lac) {
+        
+        Set<String> result = null;
+        Context context = snapshot.getContext();
+        int threshold = DataManager.getFingerprintThreshold(context);
+        if (threshold > 0) {
+            long[] observed = FingerprintIndex.getCellKeys(cid, lac, snapshot.getNeighbourCells());
+            result = FingerprintIndex.getInstance(context).match(observed, threshold);
+            if (BuildConfig.DEBUG) {
+                Log.d(LOGTAG, "CellStateManager: Fingerprint of " + observed.length + " cells matches " + result);
             }
         }
+        return result;
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Clock.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Source of time for scheduling and validation code. The application uses the system clock, while tests and
+ * benchmarks can install a {@link VirtualClock} to run time dependent scenarios faster than real time.
+ */
+public abstract class Clock {
+
+    /** Clock backed by the system time */
+    public static final Clock SYSTEM = new Clock() {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return android.os.SystemClock.elapsedRealtime();
+        }
+    };
+
+    /** Clock currently in use */
+    private static volatile Clock sClock = SYSTEM;
+
+    /** Returns the clock currently in use */
+    public static Clock getClock() {
+        return sClock;
+    }
+
+    /** Sets the clock to be used. Null restores the system clock */
+    public static void setClock(Clock clock) {
+        sClock = (clock != null) ? clock : SYSTEM;
+    }
+
+    /** Returns current time in ms since 1/1/1970 */
+    public abstract long currentTimeMillis();
+
+    /** Returns ms since boot, including time spent in sleep */
+    public abstract long elapsedRealtime();
+
+    /** Returns current date */
+    public Date getDate() {
+        return new Date(currentTimeMillis());
+    }
+
+    /** Returns a calendar set to current time in the default time zone */
+    public Calendar getCalendar() {
+        Calendar result = Calendar.getInstance();
+        result.setTimeInMillis(currentTimeMillis());
+        return result;
+    }
+}
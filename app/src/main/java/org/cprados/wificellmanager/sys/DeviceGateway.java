@@ -0,0 +1,162 @@
+/*
+ * DeviceGateway.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Access to the telephony, wifi, connectivity, alarm and power services of the device, so every call to them goes
+ * through a single seam. The application uses the system services unless another gateway is installed.
+ */
+public abstract class DeviceGateway {
+
+    /** Neighbouring cell reported by the telephony service */
+    public static class NeighbourCell {
+
+        /** Cell id or base station id */
+        public final int cid;
+
+        /** Location area code or system id */
+        public final int lac;
+
+        /** Operator code or network id, might be null */
+        public final String operator;
+
+        public NeighbourCell(int cid, int lac, String operator) {
+            this.cid = cid;
+            this.lac = lac;
+            this.operator = operator;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + lac + ", " + cid + ", " + operator + "]";
+        }
+    }
+
+    /** Telephony service */
+    public interface Telephony {
+
+        /** Returns current serving cell or null if it is not known */
+        CellSnapshot getServingCell();
+
+        /** Returns current network operator code */
+        String getNetworkOperator();
+
+        /** Returns the neighbouring cells whose cid and lac are known, might be empty */
+        List<NeighbourCell> getNeighbourCells();
+    }
+
+    /** Wifi service */
+    public interface Wifi {
+
+        /** Returns wifi state as one of the WifiManager.WIFI_STATE constants */
+        int getWifiState();
+
+        /** Returns SSID of the wifi currently connected or null */
+        String getConnectedSsid();
+
+        /** Returns network id of the wifi currently connected or -1 */
+        int getConnectedNetworkId();
+
+        /** Returns wifi access point state or -1 if it is not known */
+        int getWifiApState();
+
+        /** Returns network id of a configured wifi or -1 if it is not configured */
+        int getConfiguredNetworkId(String ssid);
+
+        /** Enables or disables wifi. Returns true if the request was accepted */
+        boolean setWifiEnabled(boolean enabled);
+
+        /** Enables a configured network. Returns true if the request was accepted */
+        boolean enableNetwork(int networkId);
+
+        /** Disables a configured network. Returns true if the request was accepted */
+        boolean disableNetwork(int networkId);
+    }
+
+    /** Connectivity service */
+    public interface Connectivity {
+
+        /** Checks if wifi network is connected */
+        boolean isWifiConnected();
+
+        /** Checks if mobile data is enabled */
+        boolean getMobileDataEnabled();
+
+        /** Enables or disables mobile data. Returns true if it succeeded */
+        boolean setMobileDataEnabled(boolean enabled);
+    }
+
+    /** Alarm service. Alarms are identified by their intent, as broadcast pending intents are */
+    public interface Alarms {
+
+        /** Schedules a broadcast of the intent at a given time, repeating at the given interval if it is above 0 */
+        void schedule(Intent intent, long time, long interval, boolean exact);
+
+        /** Cancels the alarms of the intent */
+        void cancel(Intent intent);
+    }
+
+    /** Wake lock held by the application */
+    public interface Lock {
+
+        /** Releases the wake lock */
+        void release();
+    }
+
+    /** Power service */
+    public interface Power {
+
+        /** Acquires a wake lock, turning the screen on if requested */
+        Lock acquireWakeLock(String tag, boolean turnOnScreen);
+    }
+
+    /** Gateway installed in place of the system services or null */
+    private static volatile DeviceGateway sGateway;
+
+    /** Returns the gateway installed or, if none, a gateway to the system services of the context */
+    public static DeviceGateway getGateway(Context context) {
+        DeviceGateway result = sGateway;
+        return (result != null) ? result : new SystemDeviceGateway(context);
+    }
+
+    /** Installs a gateway to be used in place of the system services. Null restores the system services */
+    public static void setGateway(DeviceGateway gateway) {
+        sGateway = gateway;
+    }
+
+    /** Returns telephony service */
+    public abstract Telephony getTelephony();
+
+    /** Returns wifi service */
+    public abstract Wifi getWifi();
+
+    /** Returns connectivity service */
+    public abstract Connectivity getConnectivity();
+
+    /** Returns alarm service */
+    public abstract Alarms getAlarms();
+
+    /** Returns power service */
+    public abstract Power getPower();
+}
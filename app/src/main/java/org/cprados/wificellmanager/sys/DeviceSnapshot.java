@@ -0,0 +1,230 @@
+/*
+ * DeviceSnapshot.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.util.List;
+
+import org.cprados.wificellmanager.sys.DeviceGateway.NeighbourCell;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+
+/**
+ * Wifi and cell state of the device captured once per event. Each item is taken from the event intent extras when
+ * available or queried to the device gateway the first time it is read, so the cell and wifi state managers share the
+ * same view of the device while processing an event.
+ */
+public class DeviceSnapshot {
+
+    /** Flags of the items already captured */
+    private static final int WIFI_CONNECTED = 1;
+    private static final int WIFI_STATE = 2;
+    private static final int CONNECTION_INFO = 4;
+    private static final int WIFI_AP_STATE = 8;
+    private static final int SERVING_CELL = 16;
+    private static final int NETWORK_OPERATOR = 32;
+    private static final int NEIGHBOUR_CELLS = 64;
+
+    /** Items that change when wifi is toggled */
+    private static final int WIFI_ITEMS = WIFI_CONNECTED | WIFI_STATE | CONNECTION_INFO | WIFI_AP_STATE;
+
+    /** Context of the event */
+    private final Context mContext;
+
+    /** Event being processed, might be null */
+    private final Intent mIntent;
+
+    /** Gateway used to query the device */
+    private final DeviceGateway mGateway;
+
+    /** Items already captured */
+    private int mCaptured;
+
+    /** Whether wifi state extras of the intent are outdated */
+    private boolean mWifiExtrasOutdated;
+
+    /** Number of queries made to the device */
+    private int mQueries;
+
+    /** Items captured */
+    private boolean mWifiConnected;
+    private int mWifiState;
+    private String mConnectedSsid;
+    private int mConnectedNetworkId;
+    private int mWifiApState;
+    private CellSnapshot mServingCell;
+    private String mNetworkOperator;
+    private List<NeighbourCell> mNeighbourCells;
+
+    /** Creates an empty snapshot for the event received */
+    public DeviceSnapshot(Context context, Intent intent) {
+        mContext = context;
+        mIntent = intent;
+        mGateway = DeviceGateway.getGateway(context);
+    }
+
+    /** Returns the context of the event */
+    public Context getContext() {
+        return mContext;
+    }
+
+    /** Returns the event being processed */
+    public Intent getIntent() {
+        return mIntent;
+    }
+
+    /** Returns the gateway used to query the device */
+    public DeviceGateway getGateway() {
+        return mGateway;
+    }
+
+    /** Checks whether an intent extra can be used instead of querying the device */
+    private boolean hasWifiExtra(String name) {
+        return !mWifiExtrasOutdated && mIntent != null && mIntent.hasExtra(name);
+    }
+
+    /** Checks if wifi network is connected */
+    public boolean isWifiConnected() {
+
+        if ((mCaptured & WIFI_CONNECTED) == 0) {
+            if (hasWifiExtra(WifiManager.EXTRA_NETWORK_INFO)) {
+                NetworkInfo networkInfo = mIntent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+                mWifiConnected = (networkInfo != null) && networkInfo.isConnected();
+            }
+            else {
+                mWifiConnected = mGateway.getConnectivity().isWifiConnected();
+                mQueries++;
+            }
+            mCaptured |= WIFI_CONNECTED;
+        }
+        return mWifiConnected;
+    }
+
+    /** Returns wifi state as one of the WifiManager.WIFI_STATE constants */
+    public int getWifiState() {
+
+        if ((mCaptured & WIFI_STATE) == 0) {
+            if (hasWifiExtra(WifiManager.EXTRA_WIFI_STATE)) {
+                mWifiState = mIntent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_UNKNOWN);
+            }
+            else {
+                mWifiState = mGateway.getWifi().getWifiState();
+                mQueries++;
+            }
+            mCaptured |= WIFI_STATE;
+        }
+        return mWifiState;
+    }
+
+    /** Captures wifi connection info */
+    private void captureConnectionInfo() {
+
+        if ((mCaptured & CONNECTION_INFO) == 0) {
+            mConnectedSsid = mGateway.getWifi().getConnectedSsid();
+            mConnectedNetworkId = mGateway.getWifi().getConnectedNetworkId();
+            mQueries++;
+            mCaptured |= CONNECTION_INFO;
+        }
+    }
+
+    /** Returns SSID of the wifi connected or null */
+    public String getConnectedSsid() {
+        captureConnectionInfo();
+        return mConnectedSsid;
+    }
+
+    /** Returns network id of the wifi connected or -1 */
+    public int getConnectedNetworkId() {
+        captureConnectionInfo();
+        return mConnectedNetworkId;
+    }
+
+    /** Returns wifi access point state or -1 if it is not known */
+    public int getWifiApState() {
+
+        if ((mCaptured & WIFI_AP_STATE) == 0) {
+            // Always queried: the access point state extra shares its name with the wifi state extra
+            mWifiApState = mGateway.getWifi().getWifiApState();
+            mQueries++;
+            mCaptured |= WIFI_AP_STATE;
+        }
+        return mWifiApState;
+    }
+
+    /** Checks if serving cell has been already captured */
+    public boolean hasServingCell() {
+        return (mCaptured & SERVING_CELL) != 0;
+    }
+
+    /** Checks if serving cell is reported by the event intent, so it is not queried to the device */
+    public boolean isServingCellReported() {
+        return mIntent != null && mIntent.hasExtra(CellSnapshot.EXTRA_CELL);
+    }
+
+    /** Returns serving cell or null if it is not known */
+    public CellSnapshot getServingCell() {
+
+        if ((mCaptured & SERVING_CELL) == 0) {
+            if (isServingCellReported()) {
+                mServingCell = CellSnapshot.fromIntent(mIntent);
+            }
+            else {
+                mServingCell = mGateway.getTelephony().getServingCell();
+                mQueries++;
+            }
+            mCaptured |= SERVING_CELL;
+        }
+        return mServingCell;
+    }
+
+    /** Returns network operator code */
+    public String getNetworkOperator() {
+
+        if ((mCaptured & NETWORK_OPERATOR) == 0) {
+            mNetworkOperator = mGateway.getTelephony().getNetworkOperator();
+            mQueries++;
+            mCaptured |= NETWORK_OPERATOR;
+        }
+        return mNetworkOperator;
+    }
+
+    /** Returns neighbouring cells */
+    public List<NeighbourCell> getNeighbourCells() {
+
+        if ((mCaptured & NEIGHBOUR_CELLS) == 0) {
+            mNeighbourCells = mGateway.getTelephony().getNeighbourCells();
+            mQueries++;
+            mCaptured |= NEIGHBOUR_CELLS;
+        }
+        return mNeighbourCells;
+    }
+
+    /** Discards wifi items captured, to be queried again after wifi state has been changed */
+    public void invalidateWifi() {
+        mCaptured &= ~WIFI_ITEMS;
+        mWifiExtrasOutdated = true;
+    }
+
+    /** Returns the number of queries made to the device */
+    public int getQueries() {
+        return mQueries;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * EventRecorder.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cprados.wificellmanager.BuildConfig;
+import org.cprados.wificellmanager.RequestedActionManager;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+/**
+ * Opt-in recorder of raw incoming events. Each event is written as a fixed size binary record into a memory mapped
+ * ring file of bounded size, so appending never allocates nor waits for disk. The file can be read back with
+ * {@link #decode(File)} to build replay datasets.
+ */
+public class EventRecorder {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = EventRecorder.class.getPackage().getName();
+
+    /** Ring file name */
+    private static final String FILE_NAME = EventRecorder.class.getName() + ".bin";
+
+    /** Magic number that identifies a ring file */
+    private static final int MAGIC = 0x57464d52;
+
+    /** Version of the ring file format */
+    private static final int VERSION = 1;
+
+    /** Maximum number of records held by the ring file */
+    private static final int MAX_RECORDS = 4096;
+
+    /** Size of the file header: magic, version, capacity, record size and next sequence number */
+    private static final int HEADER_SIZE = 32;
+
+    /** Size of each record: time, source, action, wifi state, flags, cid, lac, operator, ssid hash and sequence */
+    private static final int RECORD_SIZE = 32;
+
+    /** Header field offsets */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_RECORD_SIZE = 12;
+    private static final int HEADER_SEQUENCE = 16;
+
+    /** Record field offsets */
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_SOURCE = 8;
+    private static final int RECORD_ACTION = 9;
+    private static final int RECORD_WIFI_STATE = 10;
+    private static final int RECORD_FLAGS = 11;
+    private static final int RECORD_CID = 12;
+    private static final int RECORD_LAC = 16;
+    private static final int RECORD_OP = 20;
+    private static final int RECORD_SSID_HASH = 24;
+    private static final int RECORD_SEQUENCE = 28;
+
+    /** Sources of the recorded events */
+    public static final byte SOURCE_RECEIVER = 1;
+    public static final byte SOURCE_LISTENER = 2;
+
+    /** Codes of the recorded intent actions */
+    public static final byte ACTION_OTHER = 0;
+    public static final byte ACTION_CELL_CHANGE = 1;
+    public static final byte ACTION_NETWORK_STATE = 2;
+    public static final byte ACTION_WIFI_STATE = 3;
+    public static final byte ACTION_EXPLICIT_REQ = 4;
+
+    /** Flag set in a record when the event reported a connected wifi network */
+    public static final byte FLAG_CONNECTED = 0x01;
+
+    /** Value recorded for unknown integer fields */
+    public static final int UNKNOWN = -1;
+
+    /** The instance of this singleton class */
+    private static EventRecorder sInstance;
+
+    /** Memory mapped ring file, or null if recording is not active */
+    private volatile MappedByteBuffer mBuffer;
+
+    /** Channel of the memory mapped ring file */
+    private FileChannel mChannel;
+
+    /** Sequence number of the next record to be written */
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    /** Last serving cell reported by the cell state listener, or null if none was reported */
+    private volatile CellSnapshot mLastCell;
+
+    /** Returns existent instance of the class or creates a new one */
+    public static synchronized EventRecorder getInstance() {
+        if (sInstance == null) {
+            sInstance = new EventRecorder();
+        }
+        return sInstance;
+    }
+
+    /** Creates an event recorder */
+    private EventRecorder() {
+    }
+
+    /** Returns the ring file of the recorder */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /** Starts or stops recording events into the ring file */
+    public static void activateRecorder(Context context, boolean enable) {
+        if (enable) {
+            getInstance().open(getFile(context));
+        }
+        else {
+            getInstance().close();
+        }
+    }
+
+    /** Maps the ring file into memory, initializing it if it is not a valid ring file */
+    private synchronized void open(File file) {
+
+        if (mBuffer == null) {
+            RandomAccessFile raf = null;
+            try {
+                long size = HEADER_SIZE + (long) MAX_RECORDS * RECORD_SIZE;
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(size);
+                mChannel = raf.getChannel();
+                MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                // Resets the ring file if its format does not match current one
+                if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                        || buffer.getInt(HEADER_CAPACITY) != MAX_RECORDS || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                    for (int i = 0; i < size; i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    buffer.putInt(HEADER_MAGIC, MAGIC);
+                    buffer.putInt(HEADER_VERSION, VERSION);
+                    buffer.putInt(HEADER_CAPACITY, MAX_RECORDS);
+                    buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+                }
+
+                // Continues the sequence where it was left
+                mSequence.set(buffer.getInt(HEADER_SEQUENCE));
+                mBuffer = buffer;
+
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOGTAG, "EventRecorder: Recording to " + file + " from sequence " + mSequence.get());
+                }
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+                closeChannel(raf);
+            }
+        }
+    }
+
+    /** Flushes and unmaps the ring file */
+    private synchronized void close() {
+
+        MappedByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        if (buffer != null) {
+            try {
+                buffer.force();
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        closeChannel(null);
+    }
+
+    /** Closes the ring file channel */
+    private void closeChannel(RandomAccessFile raf) {
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+            else if (raf != null) {
+                raf.close();
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        mChannel = null;
+    }
+
+    /** Returns if the recorder is currently active */
+    public boolean isActive() {
+        return mBuffer != null;
+    }
+
+    /** 
+     * Records an intent received by the event receiver. Broadcasts do not report the serving cell, so the last one
+     * reported by the cell state listener is recorded with them
+     */
+    public void recordEvent(Intent intent) {
+
+        if (mBuffer != null && intent != null) {
+            String action = intent.getAction();
+            int wifiState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, UNKNOWN);
+            NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+            byte flags = (networkInfo != null && networkInfo.isConnected()) ? FLAG_CONNECTED : 0;
+            int ssidHash = (networkInfo != null) ? hashSSID(networkInfo.getExtraInfo()) : 0;
+
+            CellSnapshot cell = CellSnapshot.fromIntent(intent);
+            if (cell == null) {
+                cell = mLastCell;
+            }
+
+            append(SOURCE_RECEIVER, getActionCode(action), wifiState, flags, (cell != null) ? cell.cid : UNKNOWN,
+                    (cell != null) ? cell.lac : UNKNOWN, parseOperator((cell != null) ? cell.operator : null), ssidHash);
+        }
+    }
+
+    /** Records a cell location change received by the cell state listener, and keeps it as last serving cell */
+    public void recordCell(String action, CellSnapshot cell) {
+        mLastCell = cell;
+        if (mBuffer != null) {
+            append(SOURCE_LISTENER, getActionCode(action), UNKNOWN, (byte) 0, (cell != null) ? cell.cid : UNKNOWN,
+                    (cell != null) ? cell.lac : UNKNOWN, parseOperator((cell != null) ? cell.operator : null), 0);
+        }
+    }
+
+    /** Writes a record in the next slot of the ring without allocating */
+    private void append(byte source, byte action, int wifiState, byte flags, int cid, int lac, int op, int ssidHash) {
+
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer != null) {
+            try {
+                // Claims a slot of the ring
+                int sequence = mSequence.getAndIncrement();
+                int position = HEADER_SIZE + ((sequence & Integer.MAX_VALUE) % MAX_RECORDS) * RECORD_SIZE;
+
+                // Invalidates the slot while it is being written
+                buffer.putInt(position + RECORD_SEQUENCE, 0);
+
+                buffer.putLong(position + RECORD_TIME, Clock.getClock().currentTimeMillis());
+                buffer.put(position + RECORD_SOURCE, source);
+                buffer.put(position + RECORD_ACTION, action);
+                buffer.put(position + RECORD_WIFI_STATE, (byte) wifiState);
+                buffer.put(position + RECORD_FLAGS, flags);
+                buffer.putInt(position + RECORD_CID, cid);
+                buffer.putInt(position + RECORD_LAC, lac);
+                buffer.putInt(position + RECORD_OP, op);
+                buffer.putInt(position + RECORD_SSID_HASH, ssidHash);
+
+                // Sequence is written last and stored plus one, so an empty or torn slot reads as zero
+                buffer.putInt(position + RECORD_SEQUENCE, sequence + 1);
+                buffer.putInt(HEADER_SEQUENCE, sequence + 1);
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+    }
+
+    /** Returns the code of an intent action */
+    private static byte getActionCode(String action) {
+
+        byte result = ACTION_OTHER;
+        if (action != null) {
+            if (action.equals(CellStateManager.CELL_CHANGE_ACTION)) {
+                result = ACTION_CELL_CHANGE;
+            }
+            else if (action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
+                result = ACTION_NETWORK_STATE;
+            }
+            else if (action.equals(WifiManager.WIFI_STATE_CHANGED_ACTION)) {
+                result = ACTION_WIFI_STATE;
+            }
+            else if (action.startsWith(RequestedActionManager.EXPLICIT_ACTION_REQ)) {
+                result = ACTION_EXPLICIT_REQ;
+            }
+        }
+        return result;
+    }
+
+    /** Parses a numeric operator code without allocating. Returns UNKNOWN if it is not numeric */
+    private static int parseOperator(String op) {
+
+        int result = UNKNOWN;
+        if (op != null && op.length() > 0 && op.length() < 10) {
+            result = 0;
+            for (int i = 0; i < op.length(); i++) {
+                char c = op.charAt(i);
+                if (c < '0' || c > '9') {
+                    result = UNKNOWN;
+                    break;
+                }
+                result = result * 10 + (c - '0');
+            }
+        }
+        return result;
+    }
+
+    /** Hashes an SSID ignoring the quotes added by Android 4.2 and later, without allocating */
+    private static int hashSSID(String ssid) {
+
+        int result = 0;
+        if (ssid != null) {
+            for (int i = 0; i < ssid.length(); i++) {
+                char c = ssid.charAt(i);
+                if (c != '"') {
+                    result = 31 * result + c;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Reads all the valid records of a ring file in recording order. Returns an empty list if the file is not valid */
+    public static List<EventRecord> decode(File file) {
+
+        List<EventRecord> result = new ArrayList<EventRecord>();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+
+            if (data.length >= HEADER_SIZE && buffer.getInt(HEADER_MAGIC) == MAGIC && buffer.getInt(HEADER_VERSION) == VERSION) {
+                int capacity = buffer.getInt(HEADER_CAPACITY);
+                int recordSize = buffer.getInt(HEADER_RECORD_SIZE);
+
+                for (int i = 0; i < capacity && HEADER_SIZE + (i + 1) * recordSize <= data.length; i++) {
+                    int position = HEADER_SIZE + i * recordSize;
+                    int sequence = buffer.getInt(position + RECORD_SEQUENCE);
+                    if (sequence != 0) {
+                        EventRecord record = new EventRecord();
+                        record.sequence = sequence - 1;
+                        record.time = buffer.getLong(position + RECORD_TIME);
+                        record.source = buffer.get(position + RECORD_SOURCE);
+                        record.action = buffer.get(position + RECORD_ACTION);
+                        record.wifiState = buffer.get(position + RECORD_WIFI_STATE);
+                        record.connected = (buffer.get(position + RECORD_FLAGS) & FLAG_CONNECTED) != 0;
+                        record.cid = buffer.getInt(position + RECORD_CID);
+                        record.lac = buffer.getInt(position + RECORD_LAC);
+                        record.op = buffer.getInt(position + RECORD_OP);
+                        record.ssidHash = buffer.getInt(position + RECORD_SSID_HASH);
+                        result.add(record);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+
+        // Sorts the records by sequence number
+        Collections.sort(result, new Comparator<EventRecord>() {
+            @Override
+            public int compare(EventRecord lhs, EventRecord rhs) {
+                return (lhs.sequence < rhs.sequence) ? -1 : (lhs.sequence == rhs.sequence) ? 0 : 1;
+            }
+        });
+
+        return result;
+    }
+
+    /** Class that represents a decoded event record */
+    public static class EventRecord {
+
+        /** Field separator of the text representation */
+        private static final String FIELD_SEPARATOR = "|";
+
+        /** Sequence number of the record */
+        public int sequence;
+
+        /** Time of the event in ms since 1/1/1970 */
+        public long time;
+
+        /** Source of the event */
+        public byte source;
+
+        /** Code of the intent action */
+        public byte action;
+
+        /** Wifi state reported by the event or UNKNOWN */
+        public int wifiState;
+
+        /** Whether the event reported a connected wifi network */
+        public boolean connected;
+
+        /** Cell Id or UNKNOWN */
+        public int cid;
+
+        /** Location area code or UNKNOWN */
+        public int lac;
+
+        /** Numeric operator code or UNKNOWN */
+        public int op;
+
+        /** Hash of the SSID or zero if there was not any */
+        public int ssidHash;
+
+        @Override
+        public String toString() {
+            return sequence + FIELD_SEPARATOR + time + FIELD_SEPARATOR + source + FIELD_SEPARATOR + action + FIELD_SEPARATOR +
+                    wifiState + FIELD_SEPARATOR + connected + FIELD_SEPARATOR + cid + FIELD_SEPARATOR + lac + FIELD_SEPARATOR +
+                    op + FIELD_SEPARATOR + ssidHash;
+        }
+    }
+}
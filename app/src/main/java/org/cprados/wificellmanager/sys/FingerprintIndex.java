@@ -0,0 +1,222 @@
+/*
+ * FingerprintIndex.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.cprados.wificellmanager.DataManager;
+import org.cprados.wificellmanager.sys.DeviceGateway.NeighbourCell;
+
+import android.content.Context;
+
+/**
+ * Location fingerprints of the wifis, made of the serving and neighbouring cells observed while connected to them.
+ * Each fingerprint is kept as cell keys in order of last observation, and an inverted index from cell keys to wifis
+ * lets the cells observed be matched visiting only the wifis that share some cell with them.
+ */
+public class FingerprintIndex {
+
+    /** Maximum number of cells of a fingerprint */
+    public static final int MAX_CELLS = 32;
+
+    /** The instance of this singleton class */
+    private static FingerprintIndex sInstance;
+
+    /** Fingerprints by wifi */
+    private final Map<String, long[]> mFingerprints;
+
+    /** Wifis by cell key */
+    private final Map<Long, Set<String>> mIndex = new HashMap<Long, Set<String>>();
+
+    /** Returns existent instance of the class or creates a new one loading the fingerprints saved */
+    public static synchronized FingerprintIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FingerprintIndex(DataManager.getFingerprints(context));
+        }
+        return sInstance;
+    }
+
+    /** Creates the index of the given fingerprints */
+    private FingerprintIndex(Map<String, long[]> fingerprints) {
+        mFingerprints = fingerprints;
+        for (Map.Entry<String, long[]> entry : fingerprints.entrySet()) {
+            index(entry.getKey(), entry.getValue(), true);
+        }
+    }
+
+    /** Returns the key of a cell */
+    public static long getCellKey(int cid, int lac) {
+        return ((long) lac << 32) | (cid & 0xFFFFFFFFL);
+    }
+
+    /** Returns the sorted set of keys of a serving cell and its neighbouring cells */
+    public static long[] getCellKeys(int cid, int lac, List<NeighbourCell> neighbours) {
+
+        long[] result = new long[1 + ((neighbours != null) ? neighbours.size() : 0)];
+        int count = 0;
+        result[count++] = getCellKey(cid, lac);
+        if (neighbours != null) {
+            for (NeighbourCell cell : neighbours) {
+                result[count++] = getCellKey(cell.cid, cell.lac);
+            }
+        }
+        return toSortedSet(result, count);
+    }
+
+    /** Returns the first keys of an array as a sorted set without duplicates */
+    private static long[] toSortedSet(long[] keys, int count) {
+
+        long[] sorted = new long[count];
+        System.arraycopy(keys, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+
+        long[] result = new long[unique];
+        System.arraycopy(sorted, 0, result, 0, unique);
+        return result;
+    }
+
+    /** Adds or removes the cells of a fingerprint from the inverted index */
+    private void index(String wifi, long[] cells, boolean add) {
+
+        for (long cell : cells) {
+            Set<String> wifis = mIndex.get(cell);
+            if (add) {
+                if (wifis == null) {
+                    mIndex.put(cell, wifis = new HashSet<String>(2));
+                }
+                wifis.add(wifi);
+            }
+            else if (wifis != null) {
+                wifis.remove(wifi);
+                if (wifis.isEmpty()) {
+                    mIndex.remove(cell);
+                }
+            }
+        }
+    }
+
+    /** Replaces the fingerprint of a wifi and saves it. Null or empty removes it */
+    private void put(Context context, String wifi, long[] cells) {
+
+        long[] previous = mFingerprints.remove(wifi);
+        if (previous != null) {
+            index(wifi, previous, false);
+        }
+        if (cells != null && cells.length > 0) {
+            mFingerprints.put(wifi, cells);
+            index(wifi, cells, true);
+        }
+        DataManager.setFingerprint(context, wifi, cells);
+    }
+
+    /**
+     * Merges the sorted set of cells observed while connected to a wifi into its fingerprint. Cells observed go first
+     * followed by the rest in order of last observation, so when the fingerprint would grow over the maximum the cells
+     * not observed for the longest time are dropped
+     */
+    public synchronized void learn(Context context, String wifi, long[] observed) {
+
+        if (wifi != null && observed != null && observed.length > 0) {
+            long[] previous = mFingerprints.get(wifi);
+            long[] recent = new long[Math.min(observed.length + ((previous != null) ? previous.length : 0), MAX_CELLS)];
+            int count = Math.min(observed.length, recent.length);
+            System.arraycopy(observed, 0, recent, 0, count);
+            for (int i = 0; previous != null && i < previous.length && count < recent.length; i++) {
+                if (Arrays.binarySearch(observed, previous[i]) < 0) {
+                    recent[count++] = previous[i];
+                }
+            }
+            long[] merged = new long[count];
+            System.arraycopy(recent, 0, merged, 0, count);
+            if (previous == null || !Arrays.equals(previous, merged)) {
+                put(context, wifi, merged);
+            }
+        }
+    }
+
+    /** Removes a cell from the fingerprint of a wifi */
+    public synchronized void removeCell(Context context, String wifi, long cell) {
+
+        long[] previous = mFingerprints.get(wifi);
+        if (previous != null) {
+            int position = -1;
+            for (int i = 0; i < previous.length && position < 0; i++) {
+                position = (previous[i] == cell) ? i : -1;
+            }
+            if (position >= 0) {
+                long[] cells = new long[previous.length - 1];
+                System.arraycopy(previous, 0, cells, 0, position);
+                System.arraycopy(previous, position + 1, cells, position, cells.length - position);
+                put(context, wifi, cells);
+            }
+        }
+    }
+
+    /** Removes the fingerprint of a wifi */
+    public synchronized void remove(Context context, String wifi) {
+        if (mFingerprints.containsKey(wifi)) {
+            put(context, wifi, null);
+        }
+    }
+
+    /**
+     * Returns the wifis whose fingerprint contains most of the cells observed, that is, the cells they share are at
+     * least the given percent of the cells observed. Fingerprints grow with every connection while an observation is
+     * only the serving cell and a few neighbours, so their size does not lower the score
+     */
+    public synchronized Set<String> match(long[] observed, int threshold) {
+
+        // Counts the cells shared with each candidate wifi
+        Map<String, int[]> shared = new HashMap<String, int[]>();
+        for (long cell : observed) {
+            Set<String> wifis = mIndex.get(cell);
+            if (wifis != null) {
+                for (String wifi : wifis) {
+                    int[] count = shared.get(wifi);
+                    if (count == null) {
+                        shared.put(wifi, count = new int[1]);
+                    }
+                    count[0]++;
+                }
+            }
+        }
+
+        // Keeps the candidates whose containment of the cells observed reaches the threshold
+        Set<String> result = new TreeSet<String>();
+        for (Map.Entry<String, int[]> entry : shared.entrySet()) {
+            if (entry.getValue()[0] * 100 >= threshold * observed.length) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+}
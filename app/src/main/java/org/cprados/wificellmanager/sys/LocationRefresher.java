@@ -0,0 +1,113 @@
+/*
+ * LocationRefresher.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import org.cprados.wificellmanager.BuildConfig;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.location.LocationManager;
+import android.util.Log;
+
+/**
+ * Fix to force android to refresh cell id and lac before getting it via Telephony Manager API. A proximity alert makes
+ * the location providers run and so the cell location to be refreshed. A single alert is kept registered, requests
+ * within the budget of the last one issued are merged into it, and it is removed once a fresh cell fix arrives.
+ */
+public class LocationRefresher {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = LocationRefresher.class.getPackage().getName();
+
+    /** Action of the proximity alert intent */
+    private static final String ACTION = "forceLocationUpdate";
+
+    /** Time in ms within which requests are merged into the refresh issued. The alert expires after it too */
+    public static final long BUDGET = 60000;
+
+    /** Coordinates and radius of the proximity alert */
+    private static final double LATITUDE = 40.189326;
+    private static final double LONGITUDE = -2.732304;
+    private static final float RADIUS = 100000;
+
+    /** The instance of this singleton class */
+    private static LocationRefresher sInstance;
+
+    /** Intent of the proximity alert registered or null if there is none */
+    private PendingIntent mAlert;
+
+    /** Time last refresh was issued in ms since boot */
+    private long mIssuedTime;
+
+    /** Number of refreshes requested, issued and of alerts removed on a fresh fix */
+    private int mRequested;
+    private int mIssued;
+    private int mRemoved;
+
+    /** Returns existent instance of the class or creates a new one */
+    public static synchronized LocationRefresher getInstance() {
+        if (sInstance == null) {
+            sInstance = new LocationRefresher();
+        }
+        return sInstance;
+    }
+
+    /** Requests a refresh of the cell location. It is issued only if no other was issued within the budget */
+    public synchronized void request(Context context) {
+
+        mRequested++;
+        long now = Clock.getClock().elapsedRealtime();
+        if (mAlert == null || now - mIssuedTime >= BUDGET) {
+            LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+            if (lm != null) {
+                PendingIntent alert = PendingIntent.getBroadcast(context, 0, new Intent(ACTION), 0);
+                if (mAlert != null) {
+                    lm.removeProximityAlert(mAlert);
+                }
+                lm.addProximityAlert(LATITUDE, LONGITUDE, RADIUS, BUDGET, alert);
+                mAlert = alert;
+                mIssuedTime = now;
+                mIssued++;
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOGTAG, "LocationRefresher: Refresh issued " + this);
+                }
+            }
+        }
+    }
+
+    /** Removes the proximity alert registered, if any, once a fresh cell fix has arrived */
+    public synchronized void onCellFix(Context context) {
+
+        if (mAlert != null) {
+            LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+            if (lm != null) {
+                lm.removeProximityAlert(mAlert);
+            }
+            mAlert = null;
+            mRemoved++;
+        }
+    }
+
+    /** Returns a summary of the refreshes */
+    @Override
+    public synchronized String toString() {
+        return "requested: " + mRequested + ", issued: " + mIssued + ", removed: " + mRemoved;
+    }
+}
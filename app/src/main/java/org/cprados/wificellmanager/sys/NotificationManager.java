@@ -31,7 +31,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.os.Bundle;
 
 /** Class to manage Status bar notifications */
 public class NotificationManager {
@@ -40,7 +39,7 @@ public class NotificationManager {
     private static final int sNid = 0;
 
     /** Adds or updates a notification in the system status bar appropriate for an action */
-    public static void notifyAction(Context context, StateAction action, DescribeableElement cause, Date date, Bundle stateData) {
+    public static void notifyAction(Context context, StateAction action, DescribeableElement cause, Date date, ServiceState stateData) {
 
         if (context != null) {
             Resources res = context.getResources();         
@@ -50,8 +49,8 @@ public class NotificationManager {
 
             String text;
             if (action != StateAction.ADD) {               
-                Object[] args = {CellStateManager.getNearbyWifis(stateData), 
-                        WifiStateManager.getCurrentWifi(stateData), 
+                Object[] args = {stateData.getNearbyWifis(), 
+                        stateData.getCurrentWifi(), 
                         DataManager.getOffAfterDiscTimeout(context)};
                 
                 // Notification text is the action cause description
@@ -59,7 +58,7 @@ public class NotificationManager {
             }
             else {
                 // Notification text is the wifi name
-                text = WifiStateManager.getCurrentWifi(stateData);
+                text = stateData.getCurrentWifi();
             }
 
             // Puts a notification in the notifications bar
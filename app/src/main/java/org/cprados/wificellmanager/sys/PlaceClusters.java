@@ -0,0 +1,196 @@
+/*
+ * PlaceClusters.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.cprados.wificellmanager.DataManager;
+
+import android.content.Context;
+
+/**
+ * Groups the cells and wifis linked by wifi-cell associations into places. Wifis and cells are nodes of a union-find
+ * forest joined on each association, so a place is a connected component of the association graph. Associations
+ * added join places incrementally, while deleted ones make places to be rebuilt from saved associations. Places are
+ * only reported in the service dump: cell state is decided by the wifis associated to each cell, since a place also
+ * holds wifis never seen in some of its cells.
+ */
+public class PlaceClusters {
+
+    /** Place made of the wifis and cells linked by associations */
+    public static class Place {
+
+        /** Place id, its position in the list of places */
+        public final int id;
+
+        /** Wifis of the place */
+        public final Set<String> wifis;
+
+        /** Cells of the place */
+        public final List<CellIdentity> cells;
+
+        private Place(int id, Set<String> wifis, List<CellIdentity> cells) {
+            this.id = id;
+            this.wifis = Collections.unmodifiableSet(wifis);
+            this.cells = Collections.unmodifiableList(cells);
+        }
+    }
+
+    /** The instance of this singleton class */
+    private static PlaceClusters sInstance;
+
+    /** Nodes of the cells by identity and of the wifis by name */
+    private final Map<CellIdentity, Integer> mCellNodes = new HashMap<CellIdentity, Integer>();
+    private final Map<String, Integer> mWifiNodes = new HashMap<String, Integer>();
+
+    /** Parent of each node in the union-find forest */
+    private int[] mParent = new int[16];
+
+    /** Number of nodes */
+    private int mNodes;
+
+    /** Places, or null if they are outdated */
+    private List<Place> mPlaces;
+
+    /** Whether nodes have to be reloaded from saved associations */
+    private boolean mStale = true;
+
+    /** Returns existent instance of the class or creates a new one */
+    public static synchronized PlaceClusters getInstance() {
+        if (sInstance == null) {
+            sInstance = new PlaceClusters();
+        }
+        return sInstance;
+    }
+
+    /** Returns the node of a key, creating it if needed */
+    private <K> int getNode(Map<K, Integer> nodes, K key) {
+
+        Integer result = nodes.get(key);
+        if (result == null) {
+            if (mNodes == mParent.length) {
+                int[] parent = new int[mNodes * 2];
+                System.arraycopy(mParent, 0, parent, 0, mNodes);
+                mParent = parent;
+            }
+            mParent[mNodes] = mNodes;
+            nodes.put(key, result = mNodes++);
+        }
+        return result;
+    }
+
+    /** Returns the root of the tree of a node, halving the path on the way */
+    private int find(int node) {
+        while (mParent[node] != node) {
+            node = mParent[node] = mParent[mParent[node]];
+        }
+        return node;
+    }
+
+    /** Joins the places of a wifi and a cell */
+    private void union(String wifi, CellIdentity cell) {
+        int root = find(getNode(mWifiNodes, wifi));
+        int other = find(getNode(mCellNodes, cell));
+        if (root != other) {
+            mParent[other] = root;
+            mPlaces = null;
+        }
+    }
+
+    /** Reloads nodes from saved associations if they are stale */
+    private void load(Context context) {
+
+        if (mStale) {
+            mCellNodes.clear();
+            mWifiNodes.clear();
+            mNodes = 0;
+            mPlaces = null;
+            for (String key : DataManager.getWifiCellKeys(context)) {
+                String wifi = DataManager.getWifiOfWifiCellPreference(key);
+                int[] cell = DataManager.getCellOfWifiCellPreference(key);
+                if (wifi != null && cell != null) {
+                    union(wifi, new CellIdentity(DataManager.getNetwork(cell), cell[1], cell[0]));
+                }
+            }
+            mStale = false;
+        }
+    }
+
+    /** Builds places from the union-find forest if they are outdated */
+    private List<Place> getPlaces(Context context) {
+
+        load(context);
+        if (mPlaces == null) {
+
+            // Numbers the roots and gathers wifis and cells of each one
+            int[] placeOfRoot = new int[mNodes];
+            Arrays.fill(placeOfRoot, -1);
+            List<Set<String>> wifis = new ArrayList<Set<String>>();
+            List<List<CellIdentity>> cells = new ArrayList<List<CellIdentity>>();
+            int[] placeOfNode = new int[mNodes];
+            for (int node = 0; node < mNodes; node++) {
+                int root = find(node);
+                if (placeOfRoot[root] == -1) {
+                    placeOfRoot[root] = wifis.size();
+                    wifis.add(new TreeSet<String>());
+                    cells.add(new ArrayList<CellIdentity>());
+                }
+                placeOfNode[node] = placeOfRoot[root];
+            }
+            for (Map.Entry<String, Integer> entry : mWifiNodes.entrySet()) {
+                wifis.get(placeOfNode[entry.getValue()]).add(entry.getKey());
+            }
+            for (Map.Entry<CellIdentity, Integer> entry : mCellNodes.entrySet()) {
+                cells.get(placeOfNode[entry.getValue()]).add(entry.getKey());
+            }
+
+            List<Place> places = new ArrayList<Place>(wifis.size());
+            for (int id = 0; id < wifis.size(); id++) {
+                places.add(new Place(id, wifis.get(id), cells.get(id)));
+            }
+            mPlaces = places;
+        }
+        return mPlaces;
+    }
+
+    /** Returns all places, for them to be reported */
+    public synchronized List<Place> getAllPlaces(Context context) {
+        return Collections.unmodifiableList(getPlaces(context));
+    }
+
+    /** Joins the places of a wifi and a cell after their association has been added */
+    public synchronized void onWifiCellAdded(String wifi, CellIdentity cell) {
+        if (!mStale) {
+            union(wifi, cell);
+        }
+    }
+
+    /** Makes places to be rebuilt after associations have been deleted */
+    public synchronized void onWifiCellsDeleted() {
+        mStale = true;
+        mPlaces = null;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * RadioGovernor.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import org.cprados.wificellmanager.StateMachine.StateAction;
+
+/**
+ * Limits how many times each radio can be toggled within a sliding time window. Each radio keeps the times of its
+ * latest toggles in a ring as long as the budget, so the budget is exhausted when the oldest of them is still inside
+ * the window.
+ */
+public class RadioGovernor {
+
+    /** Radios governed */
+    public enum Radio {
+        WIFI, MOBILE_DATA;
+
+        /** Returns the radio an action toggles or null if it does not toggle any */
+        public static Radio getRadio(StateAction action) {
+            Radio result = null;
+            if (action == StateAction.ON || action == StateAction.OFF) {
+                result = WIFI;
+            }
+            else if (action == StateAction.DATA_OFF || action == StateAction.DATA_RESTORE) {
+                result = MOBILE_DATA;
+            }
+            return result;
+        }
+    };
+
+    /** What to do with an action when the budget of its radio is exhausted */
+    public enum Policy {
+        DEFER, DROP;
+    };
+
+    /** Length of the sliding window in ms */
+    public static final long WINDOW = 60 * 60 * 1000L;
+
+    /** The instance of this singleton class */
+    private static RadioGovernor sInstance;
+
+    /** Maximum number of toggles per radio within the window. Zero or less means unlimited */
+    private int mBudget;
+
+    /** Times of the latest toggles of each radio in ms since boot, as a ring per radio */
+    private long[][] mToggles;
+
+    /** Number of toggles recorded per radio */
+    private int[] mCount;
+
+    /** Number of actions deferred per radio */
+    private int[] mDeferred;
+
+    /** Number of actions dropped per radio */
+    private int[] mDropped;
+
+    /** Returns existent instance of the class or creates a new one */
+    public static synchronized RadioGovernor getInstance() {
+        if (sInstance == null) {
+            sInstance = new RadioGovernor();
+        }
+        return sInstance;
+    }
+
+    /** Creates a radio governor without budget */
+    private RadioGovernor() {
+        int radios = Radio.values().length;
+        mToggles = new long[radios][0];
+        mCount = new int[radios];
+        mDeferred = new int[radios];
+        mDropped = new int[radios];
+    }
+
+    /** Sets the maximum number of toggles per radio within the window, keeping the latest toggles recorded */
+    public synchronized void setBudget(int budget) {
+
+        if (budget != mBudget) {
+            long[][] toggles = new long[mToggles.length][budget > 0 ? budget : 0];
+            for (int radio = 0; radio < mToggles.length; radio++) {
+                int kept = Math.min(Math.min(mCount[radio], mToggles[radio].length), toggles[radio].length);
+                for (int i = 0; i < kept; i++) {
+                    toggles[radio][kept - 1 - i] = getToggle(radio, i);
+                }
+                mCount[radio] = kept;
+            }
+            mToggles = toggles;
+            mBudget = budget;
+        }
+    }
+
+    /** Returns the maximum number of toggles per radio within the window */
+    public synchronized int getBudget() {
+        return mBudget;
+    }
+
+    /** Returns the time of the n-th latest toggle of a radio */
+    private long getToggle(int radio, int n) {
+        long[] ring = mToggles[radio];
+        return ring[(mCount[radio] - 1 - n) % ring.length];
+    }
+
+    /** Checks if a radio can be toggled at the given time in ms since boot */
+    public synchronized boolean hasBudget(Radio radio, long now) {
+        return getReleaseTime(radio, now) <= now;
+    }
+
+    /** Returns the time in ms since boot when a radio will be allowed to toggle again */
+    public synchronized long getReleaseTime(Radio radio, long now) {
+
+        long result = now;
+        int index = radio.ordinal();
+        if (mBudget > 0 && mCount[index] >= mBudget) {
+            long oldest = getToggle(index, mBudget - 1);
+            if (now - oldest < WINDOW) {
+                result = oldest + WINDOW;
+            }
+        }
+        return result;
+    }
+
+    /** Records a toggle of a radio at the given time in ms since boot */
+    public synchronized void recordToggle(Radio radio, long now) {
+
+        int index = radio.ordinal();
+        if (mBudget > 0) {
+            mToggles[index][mCount[index] % mBudget] = now;
+            mCount[index]++;
+
+            // Keeps the counter bounded while preserving its position in the ring
+            if (mCount[index] >= 2 * mBudget) {
+                mCount[index] -= mBudget;
+            }
+        }
+    }
+
+    /** Counts an action deferred because of an exhausted budget */
+    public synchronized void recordDeferred(Radio radio) {
+        mDeferred[radio.ordinal()]++;
+    }
+
+    /** Counts an action dropped because of an exhausted budget */
+    public synchronized void recordDropped(Radio radio) {
+        mDropped[radio.ordinal()]++;
+    }
+
+    /** Returns the number of toggles of a radio within the window ending at the given time in ms since boot */
+    public synchronized int getUsage(Radio radio, long now) {
+
+        int result = 0;
+        int index = radio.ordinal();
+        int recorded = Math.min(mCount[index], mToggles[index].length);
+        for (int i = 0; i < recorded && now - getToggle(index, i) < WINDOW; i++) {
+            result++;
+        }
+        return result;
+    }
+
+    /** Returns the number of actions deferred on a radio */
+    public synchronized int getDeferred(Radio radio) {
+        return mDeferred[radio.ordinal()];
+    }
+
+    /** Returns the number of actions dropped on a radio */
+    public synchronized int getDropped(Radio radio) {
+        return mDropped[radio.ordinal()];
+    }
+
+    /** Returns a summary of the usage of the budget of each radio, deferred and dropped actions */
+    @Override
+    public synchronized String toString() {
+
+        StringBuilder result = new StringBuilder("budget: " + mBudget);
+        long now = Clock.getClock().elapsedRealtime();
+        for (Radio radio : Radio.values()) {
+            result.append(", " + radio + ": used: " + getUsage(radio, now) + ", deferred: " + getDeferred(radio)
+                    + ", dropped: " + getDropped(radio));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * ServiceState.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.cprados.wificellmanager.StateMachine.StateAction;
+import org.cprados.wificellmanager.StateMachine.StateEvent;
+
+import android.util.Log;
+
+/**
+ * State related information of the manager service: current cell, nearby wifis, current wifi, inflight wifi state
+ * change and pending mobile data action. Can be serialized to a compact binary form to be persisted.
+ */
+public class ServiceState {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = ServiceState.class.getPackage().getName();
+
+    /** Version of the binary form */
+    private static final int VERSION = 1;
+
+    /** Flags of the binary form */
+    private static final int FLAG_ON_ENABLED = 1;
+    private static final int FLAG_OFF_ENABLED = 2;
+    private static final int FLAG_PENDING_MOBILE_DATA = 4;
+    private static final int FLAG_OPERATOR = 8;
+    private static final int FLAG_CURRENT_WIFI = 16;
+
+    /** Codes of the wifi states in the binary form, fixed so they do not depend on the order of the states */
+    private static final int NO_WIFI_STATE = -1;
+    private static final int WIFI_STATE_CON = 1;
+    private static final int WIFI_STATE_DISC = 2;
+    private static final int WIFI_STATE_OFF = 3;
+
+    /** Current cell id */
+    private int mCid = CellStateManager.CELL_UNKNOWN;
+
+    /** Current location area code */
+    private int mLac = CellStateManager.CELL_UNKNOWN;
+
+    /** Current network packed as in cell identities */
+    private int mNetwork = CellIdentity.NETWORK_UNKNOWN;
+
+    /** Current operator code */
+    private String mOperator;
+
+    /** Number of wifis enabled in current cell */
+    private int mNearbyWifis;
+
+    /** Whether automatic ON action is enabled for any wifi in current cell */
+    private boolean mOnEnabled = true;
+
+    /** Whether automatic OFF action is enabled for any wifi of the last cell where state was IN */
+    private boolean mOffEnabled = true;
+
+    /** Wifi currently connected or null */
+    private String mCurrentWifi;
+
+    /** Wifi state before an inflight change or null if there is no change in progress */
+    private StateEvent mOriginWifiState;
+
+    /** Wifi state targeted by an inflight change or null if there is no change in progress */
+    private StateEvent mTargetWifiState;
+
+    /** Whether mobile data was turned off and has to be restored */
+    private boolean mPendingMobileData;
+
+    /** Returns current cell id */
+    public int getCid() {
+        return mCid;
+    }
+
+    /** Returns current location area code */
+    public int getLac() {
+        return mLac;
+    }
+
+    /** Returns current network, unknown if it is not known */
+    public int getNetwork() {
+        return mNetwork;
+    }
+
+    /** Sets current cell id, location area code and network */
+    public void setCurrentCell(int cid, int lac, int network) {
+        mCid = cid;
+        mLac = lac;
+        mNetwork = network;
+    }
+
+    /** Returns current operator code */
+    public String getOperator() {
+        return mOperator;
+    }
+
+    /** Sets current operator code */
+    public void setOperator(String operator) {
+        mOperator = operator;
+    }
+
+    /** Returns number of wifis enabled in current cell */
+    public int getNearbyWifis() {
+        return mNearbyWifis;
+    }
+
+    /** Sets number of wifis enabled in current cell */
+    public void setNearbyWifis(int nearbyWifis) {
+        mNearbyWifis = nearbyWifis;
+    }
+
+    /** Returns whether automatic ON or OFF action is enabled. Other actions are always enabled */
+    public boolean getActionEnabled(StateAction action) {
+        return (action == StateAction.ON) ? mOnEnabled : (action == StateAction.OFF) ? mOffEnabled : true;
+    }
+
+    /** Sets whether automatic ON or OFF action is enabled */
+    public void setActionEnabled(StateAction action, boolean enabled) {
+        if (action == StateAction.ON) {
+            mOnEnabled = enabled;
+        }
+        else if (action == StateAction.OFF) {
+            mOffEnabled = enabled;
+        }
+    }
+
+    /** Returns wifi currently connected or null */
+    public String getCurrentWifi() {
+        return mCurrentWifi;
+    }
+
+    /** Sets wifi currently connected */
+    public void setCurrentWifi(String currentWifi) {
+        mCurrentWifi = currentWifi;
+    }
+
+    /** Returns wifi state before an inflight change or null */
+    public StateEvent getOriginWifiState() {
+        return mOriginWifiState;
+    }
+
+    /** Returns wifi state targeted by an inflight change or null */
+    public StateEvent getTargetWifiState() {
+        return mTargetWifiState;
+    }
+
+    /** Sets an inflight wifi state change from origin to target state. Nulls clear it */
+    public void setInflightWifiState(StateEvent originWifiState, StateEvent targetWifiState) {
+        mOriginWifiState = originWifiState;
+        mTargetWifiState = targetWifiState;
+    }
+
+    /** Returns whether mobile data was turned off and has to be restored */
+    public boolean getPendingMobileData() {
+        return mPendingMobileData;
+    }
+
+    /** Sets whether mobile data was turned off and has to be restored */
+    public void setPendingMobileData(boolean pendingMobileData) {
+        mPendingMobileData = pendingMobileData;
+    }
+
+    /** Returns the binary form of this state */
+    public byte[] toByteArray() {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int flags = (mOnEnabled ? FLAG_ON_ENABLED : 0) | (mOffEnabled ? FLAG_OFF_ENABLED : 0)
+                    | (mPendingMobileData ? FLAG_PENDING_MOBILE_DATA : 0) | (mOperator != null ? FLAG_OPERATOR : 0)
+                    | (mCurrentWifi != null ? FLAG_CURRENT_WIFI : 0);
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeInt(mCid);
+            out.writeInt(mLac);
+            out.writeInt(mNetwork);
+            out.writeShort(mNearbyWifis);
+            out.writeByte(toCode(mOriginWifiState));
+            out.writeByte(toCode(mTargetWifiState));
+            if (mOperator != null) {
+                out.writeUTF(mOperator);
+            }
+            if (mCurrentWifi != null) {
+                out.writeUTF(mCurrentWifi);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Creates a state from its binary form. Returns null if it is not valid */
+    public static ServiceState fromByteArray(byte[] data) {
+
+        ServiceState result = null;
+        if (data != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                int version = in.readByte();
+                if (version == VERSION) {
+                    ServiceState state = new ServiceState();
+                    int flags = in.readByte();
+                    state.mOnEnabled = (flags & FLAG_ON_ENABLED) != 0;
+                    state.mOffEnabled = (flags & FLAG_OFF_ENABLED) != 0;
+                    state.mPendingMobileData = (flags & FLAG_PENDING_MOBILE_DATA) != 0;
+                    state.mCid = in.readInt();
+                    state.mLac = in.readInt();
+                    state.mNetwork = in.readInt();
+                    state.mNearbyWifis = in.readShort();
+                    state.mOriginWifiState = toWifiState(in.readByte());
+                    state.mTargetWifiState = toWifiState(in.readByte());
+                    state.mOperator = ((flags & FLAG_OPERATOR) != 0) ? in.readUTF() : null;
+                    state.mCurrentWifi = ((flags & FLAG_CURRENT_WIFI) != 0) ? in.readUTF() : null;
+                    result = state;
+                }
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the code of a wifi state in the binary form */
+    private static int toCode(StateEvent wifiState) {
+        return (wifiState == StateEvent.CON) ? WIFI_STATE_CON : (wifiState == StateEvent.DISC) ? WIFI_STATE_DISC
+                : (wifiState == StateEvent.OFF) ? WIFI_STATE_OFF : NO_WIFI_STATE;
+    }
+
+    /** Returns the wifi state of a code of the binary form, or null if it is not set or not known */
+    private static StateEvent toWifiState(int code) {
+        return (code == WIFI_STATE_CON) ? StateEvent.CON : (code == WIFI_STATE_DISC) ? StateEvent.DISC
+                : (code == WIFI_STATE_OFF) ? StateEvent.OFF : null;
+    }
+}
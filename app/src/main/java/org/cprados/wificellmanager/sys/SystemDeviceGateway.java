@@ -0,0 +1,339 @@
+/*
+ * SystemDeviceGateway.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.telephony.CellLocation;
+import android.telephony.NeighboringCellInfo;
+import android.telephony.TelephonyManager;
+import android.telephony.gsm.GsmCellLocation;
+import android.util.Log;
+
+/** Gateway to the system services of the device. System services are retrieved the first time they are used */
+public class SystemDeviceGateway extends DeviceGateway implements DeviceGateway.Telephony, DeviceGateway.Wifi,
+        DeviceGateway.Connectivity, DeviceGateway.Alarms, DeviceGateway.Power {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = SystemDeviceGateway.class.getPackage().getName();
+
+    /** Context used to retrieve system services */
+    private final Context mContext;
+
+    /** System services */
+    private TelephonyManager mTelephonyManager;
+    private WifiManager mWifiManager;
+    private ConnectivityManager mConnectivityManager;
+
+    /** Creates a gateway to the system services of the context */
+    public SystemDeviceGateway(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public Telephony getTelephony() {
+        return this;
+    }
+
+    @Override
+    public Wifi getWifi() {
+        return this;
+    }
+
+    @Override
+    public Connectivity getConnectivity() {
+        return this;
+    }
+
+    @Override
+    public Alarms getAlarms() {
+        return this;
+    }
+
+    @Override
+    public Power getPower() {
+        return this;
+    }
+
+    /** Returns telephony manager system service */
+    private TelephonyManager getTelephonyManager() {
+        if (mTelephonyManager == null) {
+            mTelephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        }
+        return mTelephonyManager;
+    }
+
+    /** Returns wifi manager system service */
+    private WifiManager getWifiManager() {
+        if (mWifiManager == null) {
+            mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        }
+        return mWifiManager;
+    }
+
+    /** Returns connectivity manager system service */
+    private ConnectivityManager getConnectivityManager() {
+        if (mConnectivityManager == null) {
+            mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+        return mConnectivityManager;
+    }
+
+    @Override
+    public CellSnapshot getServingCell() {
+        CellSnapshot result = null;
+        TelephonyManager tm = getTelephonyManager();
+        if (tm != null) {
+            CellLocation location = tm.getCellLocation();
+            result = CellSnapshot.fromLocation(location, (location instanceof GsmCellLocation) ? tm.getNetworkOperator() : null,
+                    Clock.getClock().elapsedRealtime());
+        }
+        return result;
+    }
+
+    @Override
+    public String getNetworkOperator() {
+        TelephonyManager tm = getTelephonyManager();
+        return (tm != null) ? tm.getNetworkOperator() : null;
+    }
+
+    @Override
+    public List<NeighbourCell> getNeighbourCells() {
+
+        List<NeighbourCell> result = new ArrayList<NeighbourCell>();
+        TelephonyManager tm = getTelephonyManager();
+        if (tm != null) {
+
+            // Cells reported by all cell info API where available
+            try {
+                Method method = tm.getClass().getMethod("getAllCellInfo");
+                List<?> cells = (List<?>) method.invoke(tm);
+                if (cells != null) {
+                    for (Object cell : cells) {
+                        Object identity = cell.getClass().getMethod("getCellIdentity").invoke(cell);
+                        addCell(result, identity, "getCid", "getLac");
+                        addCell(result, identity, "getCi", "getTac");
+                        addCell(result, identity, "getBasestationId", "getSystemId");
+                    }
+                }
+            }
+            catch (NoSuchMethodException e) {
+                // All cell info API not available
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+
+            // Neighbouring cells reported by the legacy API
+            List<NeighboringCellInfo> neighbours = tm.getNeighboringCellInfo();
+            if (neighbours != null) {
+                for (NeighboringCellInfo neighbour : neighbours) {
+                    if (neighbour.getCid() > 0 && neighbour.getLac() > 0) {
+                        result.add(new NeighbourCell(neighbour.getCid(), neighbour.getLac(), null));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Adds a cell from a cell identity reported by all cell info API if it has the given getters and valid values */
+    private static void addCell(List<NeighbourCell> cells, Object identity, String cidGetter, String lacGetter) {
+        try {
+            int cid = (Integer) identity.getClass().getMethod(cidGetter).invoke(identity);
+            int lac = (Integer) identity.getClass().getMethod(lacGetter).invoke(identity);
+            if (cid > 0 && cid != Integer.MAX_VALUE && lac > 0 && lac != Integer.MAX_VALUE) {
+                cells.add(new NeighbourCell(cid, lac, null));
+            }
+        }
+        catch (Exception e) {
+            // Not a cell identity of this radio type
+        }
+    }
+
+    @Override
+    public int getWifiState() {
+        WifiManager wm = getWifiManager();
+        return (wm != null) ? wm.getWifiState() : WifiManager.WIFI_STATE_UNKNOWN;
+    }
+
+    @Override
+    public String getConnectedSsid() {
+        WifiManager wm = getWifiManager();
+        WifiInfo wifiInfo = (wm != null) ? wm.getConnectionInfo() : null;
+        return (wifiInfo != null) ? wifiInfo.getSSID() : null;
+    }
+
+    @Override
+    public int getConnectedNetworkId() {
+        WifiManager wm = getWifiManager();
+        WifiInfo wifiInfo = (wm != null) ? wm.getConnectionInfo() : null;
+        return (wifiInfo != null) ? wifiInfo.getNetworkId() : -1;
+    }
+
+    @Override
+    public int getWifiApState() {
+        int result = -1;
+        try {
+            Method method = getWifiManager().getClass().getMethod("getWifiApState");
+            result = ((Integer) method.invoke(mWifiManager));
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    @Override
+    public int getConfiguredNetworkId(String ssid) {
+        int result = -1;
+        WifiManager wm = getWifiManager();
+        List<WifiConfiguration> list = (wm != null) ? wm.getConfiguredNetworks() : null;
+        if (list != null && ssid != null) {
+            for (WifiConfiguration wifiConf : list) {
+                if (ssid.equals(wifiConf.SSID)) {
+                    result = wifiConf.networkId;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean setWifiEnabled(boolean enabled) {
+        WifiManager wm = getWifiManager();
+        return (wm != null) && wm.setWifiEnabled(enabled);
+    }
+
+    @Override
+    public boolean enableNetwork(int networkId) {
+        WifiManager wm = getWifiManager();
+        return (wm != null) && wm.enableNetwork(networkId, false);
+    }
+
+    @Override
+    public boolean disableNetwork(int networkId) {
+        WifiManager wm = getWifiManager();
+        return (wm != null) && wm.disableNetwork(networkId);
+    }
+
+    @Override
+    public boolean isWifiConnected() {
+        ConnectivityManager cm = getConnectivityManager();
+        NetworkInfo networkInfo = (cm != null) ? cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI) : null;
+        return (networkInfo != null) && networkInfo.isConnected();
+    }
+
+    @Override
+    public boolean getMobileDataEnabled() {
+        boolean status = false;
+        try {
+            ConnectivityManager cm = getConnectivityManager();
+            Method method = cm.getClass().getMethod("getMobileDataEnabled");
+            status = (Boolean) method.invoke(cm);
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return status;
+    }
+
+    @Override
+    public boolean setMobileDataEnabled(boolean enabled) {
+        boolean result = false;
+        try {
+            // Uses reflection to get access to setMobileDataEnabled method
+            final ConnectivityManager conman = getConnectivityManager();
+            final Class<?> conmanClass = Class.forName(conman.getClass().getName());
+            final Field iConnectivityManagerField = conmanClass.getDeclaredField("mService");
+            iConnectivityManagerField.setAccessible(true);
+            final Object iConnectivityManager = iConnectivityManagerField.get(conman);
+            final Class<?> iConnectivityManagerClass = Class.forName(iConnectivityManager.getClass().getName());
+            final Method setMobileDataEnabledMethod = iConnectivityManagerClass.getDeclaredMethod("setMobileDataEnabled",
+                    Boolean.TYPE);
+            setMobileDataEnabledMethod.setAccessible(true);
+
+            // Sets mobile data enabed to target state
+            setMobileDataEnabledMethod.invoke(iConnectivityManager, enabled);
+            result = true;
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, Log.getStackTraceString(e));
+        }
+        return result;
+    }
+
+    @Override
+    public void schedule(Intent intent, long time, long interval, boolean exact) {
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
+        if (interval <= 0) {
+            am.set(AlarmManager.RTC_WAKEUP, time, pIntent);
+        }
+        else if (exact) {
+            am.setRepeating(AlarmManager.RTC_WAKEUP, time, interval, pIntent);
+        }
+        else {
+            am.setInexactRepeating(AlarmManager.RTC_WAKEUP, time, interval, pIntent);
+        }
+    }
+
+    @Override
+    public void cancel(Intent intent) {
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(PendingIntent.getBroadcast(mContext, 0, intent, 0));
+    }
+
+    @Override
+    public Lock acquireWakeLock(String tag, boolean turnOnScreen) {
+
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock;
+        if (!turnOnScreen) {
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        }
+        // Turn on screen fix
+        else {
+            wakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP
+                    | PowerManager.ON_AFTER_RELEASE, tag);
+        }
+        wakeLock.acquire();
+
+        return new Lock() {
+
+            @Override
+            public void release() {
+                wakeLock.release();
+            }
+        };
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * TransitionPredictor.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.cprados.wificellmanager.sys.EventRecorder.EventRecord;
+
+import android.util.Log;
+
+/**
+ * First order Markov model of the transitions between cells. For each cell it keeps the count of transitions to its
+ * most frequent next cells and the mean time spent in it before leaving, so the probability of entering a known cell
+ * next and the time it is expected to happen can be predicted. Cells are keyed by their global identity, so cells of
+ * different operators sharing cell id and location area code are not mixed. Memory is bounded: a cell keeps a fixed
+ * number of next cells, the least frequent replaced when it is full, and the model keeps a fixed number of cells, the
+ * least visited pruned when it is full.
+ */
+public class TransitionPredictor {
+
+    /** Tag for logging this class messages */
+    private static final String LOGTAG = TransitionPredictor.class.getPackage().getName();
+
+    /** Maximum number of cells in the model */
+    public static final int MAX_CELLS = 256;
+
+    /** Maximum number of next cells kept for each cell */
+    public static final int MAX_NEXT_CELLS = 8;
+
+    /** Counts of a cell are halved when its total reaches this value, so old habits fade */
+    private static final int MAX_COUNT = 1 << 12;
+
+    /** Filter of the cells whose arrival is predicted */
+    public interface CellFilter {
+
+        /** Returns if the cell is accepted */
+        boolean accept(CellIdentity cell);
+    }
+
+    /** Transitions from a cell */
+    private static class Row {
+
+        /** Next cells and their transition counts */
+        final CellIdentity[] next = new CellIdentity[MAX_NEXT_CELLS];
+        final int[] counts = new int[MAX_NEXT_CELLS];
+
+        /** Number of next cells */
+        int size;
+
+        /** Total number of transitions counted */
+        int total;
+
+        /** Mean time spent in the cell before leaving in ms */
+        long dwell;
+    }
+
+    /** Transitions by cell */
+    private final Map<CellIdentity, Row> mRows = new HashMap<CellIdentity, Row>();
+
+    /** Current cell or null if it is not known, and time it was entered in ms since 1/1/1970 */
+    private CellIdentity mCell;
+    private long mEntered;
+
+    /** Number of transitions learnt, and of next cells and cells pruned */
+    private int mTransitions;
+    private int mPruned;
+
+    /** Creates an empty model */
+    public TransitionPredictor() {
+    }
+
+    /** Creates a model from its serialized form. Data not valid is discarded */
+    public TransitionPredictor(byte[] data) {
+
+        if (data != null) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining() && mRows.size() < MAX_CELLS) {
+                    CellIdentity cell = readCell(buffer);
+                    Row row = new Row();
+                    row.dwell = buffer.getLong();
+                    row.size = Math.min(buffer.getInt(), MAX_NEXT_CELLS);
+                    for (int i = 0; i < row.size; i++) {
+                        row.next[i] = readCell(buffer);
+                        row.counts[i] = buffer.getInt();
+                        row.total += row.counts[i];
+                    }
+                    mRows.put(cell, row);
+                }
+            }
+            catch (BufferUnderflowException e) {
+                Log.e(LOGTAG, Log.getStackTraceString(e));
+            }
+        }
+    }
+
+    /** Returns the serialized form of the model */
+    public synchronized byte[] toByteArray() {
+
+        int size = 0;
+        for (Row row : mRows.values()) {
+            size += 24 + row.size * 16;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Map.Entry<CellIdentity, Row> entry : mRows.entrySet()) {
+            Row row = entry.getValue();
+            writeCell(buffer, entry.getKey());
+            buffer.putLong(row.dwell);
+            buffer.putInt(row.size);
+            for (int i = 0; i < row.size; i++) {
+                writeCell(buffer, row.next[i]);
+                buffer.putInt(row.counts[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Reads a cell of the serialized form: packed network and location area code and cell id */
+    private static CellIdentity readCell(ByteBuffer buffer) {
+        int network = buffer.getInt();
+        long cell = buffer.getLong();
+        return new CellIdentity(network, (int) (cell >>> 32), (int) cell);
+    }
+
+    /** Writes a cell in the serialized form */
+    private static void writeCell(ByteBuffer buffer, CellIdentity cell) {
+        buffer.putInt(cell.getNetwork());
+        buffer.putLong(cell.getLow());
+    }
+
+    /**
+     * Observes the cell of the device at a given time, learning the transition from previous cell if it changed.
+     * Unknown cells are ignored
+     * @return true if the cell changed
+     */
+    public synchronized boolean observe(CellIdentity cell, long time) {
+
+        boolean result = false;
+        if (cell != null && !cell.equals(mCell)) {
+            if (mCell != null) {
+                learn(mCell, cell, Math.max(time - mEntered, 0));
+            }
+            mCell = cell;
+            mEntered = time;
+            result = true;
+        }
+        return result;
+    }
+
+    /** Counts a transition between two cells after the given time in the first one */
+    private void learn(CellIdentity from, CellIdentity to, long dwell) {
+
+        Row row = mRows.get(from);
+        if (row == null) {
+            if (mRows.size() >= MAX_CELLS) {
+                prune();
+            }
+            mRows.put(from, row = new Row());
+        }
+
+        // Finds the next cell or replaces the least frequent one if there is no room for it
+        int position = 0;
+        while (position < row.size && !row.next[position].equals(to)) {
+            position++;
+        }
+        if (position == MAX_NEXT_CELLS) {
+            position = 0;
+            for (int i = 1; i < row.size; i++) {
+                if (row.counts[i] < row.counts[position]) {
+                    position = i;
+                }
+            }
+            row.total -= row.counts[position];
+            row.counts[position] = 0;
+            mPruned++;
+        }
+        else if (position == row.size) {
+            row.size++;
+        }
+        row.next[position] = to;
+        row.counts[position]++;
+        row.total++;
+
+        // Updates mean dwell time and ages the counts
+        row.dwell = (row.total <= 1) ? dwell : row.dwell + (dwell - row.dwell) / Math.min(row.total, 16);
+        if (row.total >= MAX_COUNT) {
+            row.total = 0;
+            for (int i = 0; i < row.size; i++) {
+                row.total += (row.counts[i] = Math.max(row.counts[i] / 2, 1));
+            }
+        }
+        mTransitions++;
+    }
+
+    /** Removes the cell with fewest transitions, other than the current one */
+    private void prune() {
+
+        CellIdentity victim = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Map.Entry<CellIdentity, Row> entry : mRows.entrySet()) {
+            if (entry.getValue().total < fewest && !entry.getKey().equals(mCell)) {
+                victim = entry.getKey();
+                fewest = entry.getValue().total;
+            }
+        }
+        if (victim != null) {
+            mRows.remove(victim);
+            mPruned++;
+        }
+    }
+
+    /** Returns the most likely next cell of a cell or null if there are no transitions from it */
+    public synchronized CellIdentity predictNext(CellIdentity cell) {
+
+        CellIdentity result = null;
+        Row row = mRows.get(cell);
+        if (row != null) {
+            int best = -1;
+            for (int i = 0; i < row.size; i++) {
+                if (best == -1 || row.counts[i] > row.counts[best]) {
+                    best = i;
+                }
+            }
+            result = (best != -1) ? row.next[best] : null;
+        }
+        return result;
+    }
+
+    /** Returns the probability in percent that next cell after a cell is one accepted by the filter */
+    public synchronized int getProbability(CellIdentity cell, CellFilter filter) {
+
+        int result = 0;
+        Row row = mRows.get(cell);
+        if (row != null && row.total > 0) {
+            int accepted = 0;
+            for (int i = 0; i < row.size; i++) {
+                if (filter.accept(row.next[i])) {
+                    accepted += row.counts[i];
+                }
+            }
+            result = accepted * 100 / row.total;
+        }
+        return result;
+    }
+
+    /** Returns the mean time spent in a cell before leaving in ms, or 0 if there are no transitions from it */
+    public synchronized long getMeanDwell(CellIdentity cell) {
+        Row row = mRows.get(cell);
+        return (row != null) ? row.dwell : 0;
+    }
+
+    /** Returns the number of transitions learnt */
+    public synchronized int getTransitions() {
+        return mTransitions;
+    }
+
+    /** Returns a summary of the model */
+    @Override
+    public synchronized String toString() {
+        return "cells: " + mRows.size() + "/" + MAX_CELLS + ", transitions: " + mTransitions + ", pruned: " + mPruned;
+    }
+
+    /**
+     * Evaluates the prediction over the cell sequence of recorded events. A fresh model learns the sequence while it
+     * is replayed, so each transition is predicted only from the ones before it. Records do not carry the radio type
+     * the network is packed with, so replayed cells have unknown network. An arrival is caught early if the
+     * poll requested when the previous cell was entered comes after the arrival and before the regular poll that
+     * would have observed it, the difference being the lead time. Intervals of the regular polls are in ms
+     */
+    public static Evaluation evaluate(List<EventRecord> records, CellFilter filter, int threshold, long minInterval,
+            long maxInterval) {
+
+        Evaluation result = new Evaluation();
+        TransitionPredictor predictor = new TransitionPredictor();
+        CellIdentity predicted = null;
+        boolean armed = false;
+        long armedTime = 0;
+        long earlyPoll = 0;
+
+        for (Iterator<EventRecord> iterator = records.iterator(); iterator.hasNext();) {
+            EventRecord record = iterator.next();
+            if (record.cid > 0 && record.lac > 0) {
+                CellIdentity cell = new CellIdentity(CellIdentity.NETWORK_UNKNOWN, record.lac, record.cid);
+                CellIdentity previous = predictor.mCell;
+                if (predictor.observe(cell, record.time)) {
+
+                    // Scores the prediction made when previous cell was entered
+                    if (previous != null) {
+                        result.transitions++;
+                        if (predicted != null) {
+                            result.predictions++;
+                            result.hits += predicted.equals(cell) ? 1 : 0;
+                        }
+                        if (filter.accept(cell)) {
+                            result.arrivals++;
+                            if (armed) {
+                                result.armedArrivals++;
+                                long regularPoll = getRegularPoll(armedTime, record.time, minInterval, maxInterval);
+                                if (earlyPoll >= record.time && earlyPoll < regularPoll) {
+                                    result.caughtArrivals++;
+                                    result.leadTime += regularPoll - earlyPoll;
+                                }
+                            }
+                        }
+                        else if (armed) {
+                            result.falseArms++;
+                        }
+                    }
+
+                    // Predicts next cell from the transitions learnt so far
+                    predicted = predictor.predictNext(cell);
+                    armed = !filter.accept(cell) && predictor.getProbability(cell, filter) >= threshold;
+                    armedTime = record.time;
+                    earlyPoll = armedTime + predictor.getMeanDwell(cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time of the first regular poll at or after the given time, polling from the time a cell was entered
+     * with the interval doubled after each poll up to the maximum
+     */
+    private static long getRegularPoll(long entered, long time, long minInterval, long maxInterval) {
+
+        long interval = Math.max(minInterval, 1);
+        long result = entered + interval;
+        while (result < time) {
+            interval = Math.min(interval * 2, Math.max(maxInterval, interval));
+            result += interval;
+        }
+        return result;
+    }
+
+    /** Results of an offline evaluation */
+    public static class Evaluation {
+
+        /** Number of transitions replayed, and of them predicted and predicted right */
+        public int transitions;
+        public int predictions;
+        public int hits;
+
+        /** Number of arrivals to accepted cells, of them anticipated, and of anticipations not followed by arrival */
+        public int arrivals;
+        public int armedArrivals;
+        public int falseArms;
+
+        /** Number of anticipated arrivals the early poll observed before the regular poll */
+        public int caughtArrivals;
+
+        /** Total time the early polls observed the arrivals they caught before the regular polls in ms */
+        public long leadTime;
+
+        /** Returns a summary of the evaluation */
+        @Override
+        public String toString() {
+            return "transitions: " + transitions + ", accuracy: " + ((predictions > 0) ? hits * 100 / predictions : 0)
+                    + "% of " + predictions + ", arrivals anticipated: " + armedArrivals + "/" + arrivals
+                    + ", false: " + falseArms + ", caught early: " + caughtArrivals + ", mean lead(s): "
+                    + ((caughtArrivals > 0) ? leadTime / caughtArrivals / 1000 : 0);
+        }
+    }
+}
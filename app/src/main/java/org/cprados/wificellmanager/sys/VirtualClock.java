@@ -0,0 +1,61 @@
+/*
+ * VirtualClock.java
+ * This file is part of WifiCellManager.
+ * Copyright (C) 2012 Carlos Prados <wifimatic.app@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cprados.wificellmanager.sys;
+
+/**
+ * Controllable clock whose time only moves when it is explicitly set or advanced. Allows simulating day long
+ * scheduled interval and deferred off scenarios in milliseconds.
+ */
+public class VirtualClock extends Clock {
+
+    /** Current virtual time in ms since 1/1/1970 */
+    private long mCurrentTime;
+
+    /** Current virtual time in ms since boot */
+    private long mElapsedRealtime;
+
+    /** Creates a virtual clock set to the given time in ms since 1/1/1970 */
+    public VirtualClock(long currentTime) {
+        mCurrentTime = currentTime;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return mCurrentTime;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return mElapsedRealtime;
+    }
+
+    /** Moves the clock forward the given number of ms and returns the new time */
+    public synchronized long advance(long millis) {
+        if (millis > 0) {
+            mCurrentTime += millis;
+            mElapsedRealtime += millis;
+        }
+        return mCurrentTime;
+    }
+
+    /** Sets the wall clock time. Time since boot is not affected, as it happens with the system clock */
+    public synchronized void setCurrentTimeMillis(long currentTime) {
+        mCurrentTime = currentTime;
+    }
+}
@@ -21,57 +21,64 @@ package org.cprados.wificellmanager.sys;
 import org.cprados.wificellmanager.DataManager;
 
 import android.content.Context;
-import android.os.PowerManager;
+import android.content.Intent;
 
 /**
- * Manager class for the application CPU Wake Lock. Wake Lock is acquired from the broadcast receivers and listeners
- * before invoking manager service and is released when the service has finished processing
+ * Manager class for the application CPU Wake Lock. The broadcast receiver takes a reference to the wake lock for each
+ * event before forwarding it to the manager service, and the reference travels in the event. The service releases it
+ * once the event has been processed or dropped, so the wake lock is held until the last event forwarded is done
  */
 public class WakeLockManager {
 
     /** The wake lock tag */
     private static final String WAKELOCK_TAG = WakeLockManager.class.getName() + ".wake_lock";
     
+    /** Extra with the number of references to the wake lock an event holds */
+    public static final String EXTRA_WAKE_LOCKS = WakeLockManager.class.getName() + ".wake_locks";
+    
     /** The WakeLockManager instance */
     private static WakeLockManager mInstance = null;
 
     /** Wake lock to be acquired before running the manager service*/
-    private PowerManager.WakeLock mCpuWakeLock = null;
+    private DeviceGateway.Lock mCpuWakeLock = null;
+
+    /** Number of references to the wake lock held by events */
+    private int mReferences;
 
     /** Returns the WakeLockManager instance */
-    public static WakeLockManager getWakeLockManager() {
+    public static synchronized WakeLockManager getWakeLockManager() {
         if (mInstance == null)
             mInstance = new WakeLockManager();
         return mInstance;
     }
 
-    /** Acquires the wake lock */
-    public void acquireWakeLock(Context context) {
-
-        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    /** Acquires the wake lock if it is not held and adds a reference to it held by an event */
+    public synchronized void acquireWakeLock(Context context, Intent intent) {
 
         if (mCpuWakeLock == null) {
-            
-            if (!DataManager.getTurnOnScreen(context)) {                
-                mCpuWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK , WAKELOCK_TAG);
-                //mCpuWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, WAKELOCK_TAG);
-            }
+            mCpuWakeLock = DeviceGateway.getGateway(context).getPower().acquireWakeLock(WAKELOCK_TAG,
+                    DataManager.getTurnOnScreen(context));
+        }
+        mReferences++;
+        intent.putExtra(EXTRA_WAKE_LOCKS, getWakeLocks(intent) + 1);
+    }
 
-            // Turn on screen fix
-            else {                        
-                //mCpuWakeLock = pm.newWakeLock(PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, WAKELOCK_TAG);
-                mCpuWakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE , WAKELOCK_TAG);
+    /** Releases the references to the wake lock held by an event, and the wake lock with the last reference */
+    public synchronized void releaseWakeLock(Intent intent) {
+
+        int references = getWakeLocks(intent);
+        if (references > 0) {
+            intent.removeExtra(EXTRA_WAKE_LOCKS);
+            mReferences = Math.max(mReferences - references, 0);
+            if (mReferences == 0 && mCpuWakeLock != null) {
+                mCpuWakeLock.release();
+                mCpuWakeLock = null;
             }
-            
-            mCpuWakeLock.acquire();
         }
     }
 
-    /** Release the wake lock */
-    public void releaseWakeLock() {
-        if (mCpuWakeLock != null) {
-            mCpuWakeLock.release();
-            mCpuWakeLock = null;
-        }
+    /** Returns the number of references to the wake lock an event holds */
+    public static int getWakeLocks(Intent intent) {
+        return (intent != null) ? intent.getIntExtra(EXTRA_WAKE_LOCKS, 0) : 0;
     }
 }
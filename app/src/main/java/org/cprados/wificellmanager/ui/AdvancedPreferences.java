@@ -19,9 +19,12 @@
 package org.cprados.wificellmanager.ui;
 
 import org.cprados.wificellmanager.DataManager;
+import org.cprados.wificellmanager.ManagerService;
 import org.cprados.wificellmanager.R;
+import org.cprados.wificellmanager.sys.EventRecorder;
 
 import android.app.Dialog;
+import android.content.Intent;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
@@ -67,6 +70,9 @@ public class AdvancedPreferences extends PreferenceActivity implements OnPrefere
         screen.findPreference(DataManager.PREFERENCE_OFF_AFTER_DISC_TIMEOUT).setOnPreferenceChangeListener(this);
         screen.findPreference(DataManager.PREFERENCE_MOBILE_DATA_MANAGED).setOnPreferenceChangeListener(this);
         screen.findPreference(DataManager.PREFERENCE_UNK_LOCATION_ACTIVATES_WIFI).setOnPreferenceChangeListener(this);
+        screen.findPreference(DataManager.PREFERENCE_EVENT_RECORDER).setOnPreferenceChangeListener(this);
+        screen.findPreference(DataManager.PREFERENCE_MAX_POLL_INTERVAL).setOnPreferenceChangeListener(this);
+        screen.findPreference(DataManager.PREFERENCE_CELL_DUPLICATE_WINDOW).setOnPreferenceChangeListener(this);
     }
     
     /**
@@ -154,6 +160,33 @@ public class AdvancedPreferences extends PreferenceActivity implements OnPrefere
             }
         }
 
+        // Event recorder preference changed, starts or stops recording if service is active
+        else if (preference.getKey().equals(DataManager.PREFERENCE_EVENT_RECORDER)) {
+            EventRecorder.activateRecorder(getApplicationContext(), 
+                    DataManager.getActivate(this) && newValue != null && Boolean.parseBoolean(newValue.toString()));
+        }
+
+        // Maximum check interval or duplicate window changed, they are applied when the service subscribes to events
+        else if (preference.getKey().equals(DataManager.PREFERENCE_MAX_POLL_INTERVAL)) {
+            if (newValue != null && Integer.parseInt(newValue.toString()) != DataManager.getMaxPollInterval(this)) {
+                restartService();
+            }
+        }
+        else if (preference.getKey().equals(DataManager.PREFERENCE_CELL_DUPLICATE_WINDOW)) {
+            if (newValue != null && Integer.parseInt(newValue.toString()) != DataManager.getCellDuplicateWindow(this)) {
+                restartService();
+            }
+        }
+
         return true;
     }
+
+    /** Restarts the service if it is running */
+    private void restartService() {
+        if (DataManager.getActivate(this)) {
+            Intent intent = new Intent(this.getApplicationContext(), ManagerService.class);
+            stopService(intent);
+            startService(intent);
+        }
+    }
 }
@@ -480,11 +480,12 @@ public class WifiListPreferences extends PreferenceActivity implements OnPrefere
     }
 
     /** Removes a wifi preference UI object */
-    private void deleteWifiPreference(PreferenceCategory cat, String key, String wifi, boolean isCurrentWifi) {
+    private void deleteWifiPreference(PreferenceCategory cat, String key, final String wifi, boolean isCurrentWifi) {
 
         // Remove the UI object preference
         Preference pref = cat.findPreference(key);
         cat.removePreference(pref);
+        boolean deferred = false;
 
         // Disconnects wifi before current wifi is deleted
         if (isCurrentWifi && DataManager.getWifiAction(this, StateAction.OFF, wifi)) {
@@ -493,14 +494,32 @@ public class WifiListPreferences extends PreferenceActivity implements OnPrefere
                 // Disconnects 
                 WifiStateManager.setWifiState(this, StateEvent.DISC, null);
 
-                // Synchronously forward wifi state change event to the manager service
-                if (mManagerServiceBinder != null)
-                    mManagerServiceBinder.syncForwardEvent(this, WifiManager.NETWORK_STATE_CHANGED_ACTION, null);
+                // Forwards wifi state change event to the manager service and removes the stored preference and all 
+                // wificell associations of this wifi in the event loop once the service has processed it
+                if (mManagerServiceBinder != null) {
+                    final Context context = getApplicationContext();
+                    mManagerServiceBinder.submitEvent(this, WifiManager.NETWORK_STATE_CHANGED_ACTION, null, new Runnable() {
+                        
+                        @Override
+                        public void run() {
+                            DataManager.deleteWifiCells(context, wifi);
+                        }
+                    }, new Runnable() {
+                        
+                        @Override
+                        public void run() {
+                            Preferences.requestRefresh(context);
+                        }
+                    });
+                    deferred = true;
+                }
             }
         }
 
         // Remove the stored preference and all wificell associations of this wifi
-        DataManager.deleteWifiCells(this, wifi);
+        if (!deferred) {
+            DataManager.deleteWifiCells(this, wifi);
+        }
     }
 
     /** Set a value to all wifi preferences UI objects that are selected by user */
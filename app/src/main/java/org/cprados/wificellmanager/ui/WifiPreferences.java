@@ -48,7 +48,6 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
-import android.util.Base64;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -242,7 +241,7 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
 
                     // Mark the selected wifi
                     if ((wifi !=null) && (cell !=null) && (cell.length > 1)) {
-                        DataManager.setWifiCellSelected(this, wifi, cell[0], cell[1], true);
+                        DataManager.setWifiCellSelected(this, wifi, cell[0], cell[1], DataManager.getNetwork(cell), true);
                     }
 
                     // Do a refresh of the UI
@@ -340,18 +339,19 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
             if (cell != null && cell.length > 1) {
 
                 // Button bar have to be shown if any wifi preference is marked as selected
-                boolean selected = DataManager.getWifiCellSelected(this, mWifiName, cell[0], cell[1]);
+                boolean selected = DataManager.getWifiCellSelected(this, mWifiName, cell[0], cell[1], DataManager.getNetwork(cell));
                 enableButtons = selected || enableButtons;
             
                 // Enable wifi cell button has to be shown if all marked items are disabled
-                boolean enabledMark = DataManager.getCellEnabled(this, cell[0], cell[1]);
+                boolean enabledMark = DataManager.getCellEnabled(this, cell[0], cell[1], DataManager.getNetwork(cell));
                 toggleEnableWifiCell = ((selected && !enabledMark) || !selected ) && toggleEnableWifiCell;
 
                 if (refreshAll) {
 
                     boolean isCurrentCell = (currentCell != null) && (currentCell.length > 1) && 
                             (currentCell[0] != 0) && (currentCell[1] != 0) && 
-                            (currentCell[0] == cell[0]) && (currentCell[1] == cell[1]);
+                            (currentCell[0] == cell[0]) && (currentCell[1] == cell[1]) &&
+                            (DataManager.getNetwork(currentCell) == DataManager.getNetwork(cell));
 
                     addWifiCellPreference(catCells, cell, pos, numCells, editMode, enabledMark, isCurrentCell, isCurrentWifi, active);
                 }
@@ -394,10 +394,7 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
         // Sets key, title, and persistence
         Resources res = getResources();
         String title = String.format(res.getString(R.string.preference_title_cell_description), cell[1], cell[0]);        
-        String base64 = Base64.encodeToString(mWifiName.getBytes(), Base64.NO_WRAP);
-        String key = DataManager.PREFERENCE_WIFICELL + base64 + 
-                DataManager.KEY_SEPARATOR + cell[0] + 
-                DataManager.KEY_SEPARATOR + cell[1];
+        String key = DataManager.getWifiCellPreferenceKey(mWifiName, cell[0], cell[1], DataManager.getNetwork(cell));
         cellPref.setKey(key);
         cellPref.setTitle(title);
         cellPref.setPersistent(true);
@@ -533,10 +530,11 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
                     if ((wifi != null) && (cell != null) && (cell.length > 1)) {
 
                         boolean isCurrentWifiCell = (wifi.equals(currentWifi) && (currentCell != null) && (currentCell.length > 1)
-                                && (currentCell[0] == cell[0]) && (currentCell[1] == cell[1]));
+                                && (currentCell[0] == cell[0]) && (currentCell[1] == cell[1])
+                                && (DataManager.getNetwork(currentCell) == DataManager.getNetwork(cell)));
 
                         // Deletes the wifi preference from the list
-                        deleteWifiCellPreference(cat, key, wifi, cell[0], cell[1], isCurrentWifiCell);                        
+                        deleteWifiCellPreference(cat, key, wifi, cell[0], cell[1], DataManager.getNetwork(cell), isCurrentWifiCell);                        
                         
                         // Restores loop values
                         i--;
@@ -562,11 +560,12 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
     }
 
     /** Removes a wifi preference UI object */
-    private void deleteWifiCellPreference(PreferenceCategory cat, String key, String wifi, int cellId, int lac, boolean isCurrentWifiCell) {
+    private void deleteWifiCellPreference(PreferenceCategory cat, String key, final String wifi, final int cellId, final int lac, final int network, boolean isCurrentWifiCell) {
 
         // Remove the UI object preference
         Preference pref = cat.findPreference(key);
         cat.removePreference(pref);
+        boolean deferred = false;
 
         // Disconnects wifi before current wifi-cell is deleted
         if (isCurrentWifiCell && DataManager.getWifiAction(this, StateAction.OFF, wifi)) {
@@ -575,14 +574,32 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
                 // Disconnects 
                 WifiStateManager.setWifiState(this, StateEvent.DISC, null);
 
-                // Synchronously forward wifi state change event to the manager service
-                if (mManagerServiceBinder != null)
-                    mManagerServiceBinder.syncForwardEvent(this, WifiManager.NETWORK_STATE_CHANGED_ACTION, null);
+                // Forwards wifi state change event to the manager service and removes the stored wificell 
+                // association in the event loop once the service has processed it
+                if (mManagerServiceBinder != null) {
+                    final Context context = getApplicationContext();
+                    mManagerServiceBinder.submitEvent(this, WifiManager.NETWORK_STATE_CHANGED_ACTION, null, new Runnable() {
+                        
+                        @Override
+                        public void run() {
+                            DataManager.deleteWifiCell(context, wifi, cellId, lac, network);
+                        }
+                    }, new Runnable() {
+                        
+                        @Override
+                        public void run() {
+                            Preferences.requestRefresh(context);
+                        }
+                    });
+                    deferred = true;
+                }
             }
         }
 
         // Remove the stored preference and all wificell associations of this wifi
-        DataManager.deleteWifiCell(this, wifi, cellId, lac);
+        if (!deferred) {
+            DataManager.deleteWifiCell(this, wifi, cellId, lac, network);
+        }
     }
 
     /** Set a value to all wifi preferences UI objects that are selected by user */
@@ -604,10 +621,10 @@ public class WifiPreferences extends PreferenceActivity implements OnPreferenceC
                     if ((wifi != null) && (cell != null) && (cell.length > 1)) {
 
                         // Enable or dissable this cell
-                        DataManager.setCellEnabled(this, cell[0], cell[1], value);
+                        DataManager.setCellEnabled(this, cell[0], cell[1], DataManager.getNetwork(cell), value);
 
                         // Unmark the preference
-                        DataManager.setWifiCellSelected(this, wifi, cell[0], cell[1], false);
+                        DataManager.setWifiCellSelected(this, wifi, cell[0], cell[1], DataManager.getNetwork(cell), false);
                     }
                 }
             }